@@ -0,0 +1,437 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import NPFSApp.FileListener;
+import NPFSApp.FileListenerPOA;
+import NPFSApp.FileServer;
+import NPFSApp.fileInfo;
+import NPFSApp.lease;
+
+/**
+ * Keeps the ranges of files a client has read, tagged with the version of
+ * the file they were read at. Ranges are kept on disk, and small ones in
+ * memory as well. A cached range is only used after the server confirms the
+ * version is still current, which also opens the range for the session, so
+ * reading an unchanged range again costs one small call instead of sending
+ * the data.
+ * 
+ * Once registered as a listener, the cache takes a lease on each file it
+ * reads and the server calls it back when the file changes, so files it
+ * holds a lease on don't have to be checked when revalidating.
+ * 
+ * @author nhydock
+ *
+ */
+public class ClientCache extends FileListenerPOA {
+
+    /**
+     * Largest range kept in memory as well as on disk
+     */
+    static final int MAX_MEMORY_ENTRY = 1024 * 1024;
+
+    /**
+     * Bytes of ranges kept in memory when no capacity is given
+     */
+    static final long DEFAULT_MEMORY = 16 * 1024 * 1024;
+
+    /**
+     * Number of bytes moved per readChunk call
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * A range held in memory
+     */
+    private static class Entry {
+        final int version;
+        final byte[] data;
+
+        Entry(int version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Server the ranges come from
+     */
+    private final FileServer server;
+
+    /**
+     * Directory the ranges are kept in on disk
+     */
+    private final File directory;
+
+    /**
+     * Most bytes of ranges to keep in memory
+     */
+    private final long memoryCapacity;
+
+    /**
+     * Ranges in memory by the name of their file on disk, least recently
+     * used first
+     */
+    private final LinkedHashMap<String, Entry> memory;
+
+    /**
+     * Bytes of ranges in memory
+     */
+    private long memoryUsed;
+
+    /**
+     * Our reference for the server to call back, or null if we aren't
+     * taking leases
+     */
+    private FileListener listener;
+
+    /**
+     * When our lease on each file runs out
+     */
+    private final HashMap<String, Long> leases;
+
+    /**
+     * Reads served from the cache
+     */
+    private long hits;
+
+    /**
+     * Reads that went to the server for the data
+     */
+    private long misses;
+
+    /**
+     * Creates a cache for a server's files
+     * 
+     * @param server
+     * @param directory
+     *            - directory to keep ranges in, created if it doesn't exist
+     * @param memoryCapacity
+     *            - most bytes of ranges to keep in memory
+     */
+    public ClientCache(FileServer server, File directory, long memoryCapacity) {
+        this.server = server;
+        this.directory = directory;
+        this.memoryCapacity = memoryCapacity;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        this.leases = new HashMap<String, Long>();
+        directory.mkdirs();
+    }
+
+    /**
+     * Starts taking leases on the files read, with the server calling back
+     * this reference when one changes
+     * 
+     * @param listener
+     *            - reference to this cache
+     */
+    public synchronized void setListener(FileListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Opens a range of a file for a session and writes its data out, from
+     * the cache if our copy is still current or from the server otherwise
+     * 
+     * @param filename
+     * @param start
+     * @param end
+     * @param sessionID
+     * @param out
+     *            - where to write the range's data
+     * @throws IOException
+     */
+    public synchronized void open(String filename, long start, long end, int sessionID, OutputStream out)
+            throws IOException {
+        String key = key(filename, start, end);
+        File file = new File(directory, key);
+        Entry cached = memory.get(key);
+        int version = (cached != null) ? cached.version : version(file);
+        renew(filename);
+
+        if (version >= 0 && server.reopenFile(filename, start, end, sessionID, version)) {
+            hits++;
+            if (cached != null) {
+                out.write(cached.data);
+            } else {
+                copy(file, out);
+            }
+            return;
+        }
+
+        misses++;
+        forget(key);
+        // the version is taken before the data, so if the file changes in
+        // between the copy is tagged as older than it is and is simply
+        // fetched again next time
+        version = server.getVersion(filename);
+        server.openStream(filename, start, end, sessionID);
+        File tmp = new File(directory, key + ".tmp");
+        try (DataOutputStream disk = new DataOutputStream(new FileOutputStream(tmp))) {
+            disk.writeInt(version);
+            byte[] chunk;
+            while ((chunk = server.readChunk(sessionID, CHUNK_SIZE)).length > 0) {
+                out.write(chunk);
+                disk.write(chunk);
+            }
+        }
+        if (version < 0) {
+            tmp.delete();
+            return;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (end - start <= MAX_MEMORY_ENTRY) {
+            remember(key, version, file);
+        }
+    }
+
+    /**
+     * Drops every cached range of a file whose version has changed on the
+     * server, checking all of the files we don't hold a lease on in a single
+     * call
+     */
+    public synchronized void revalidate() {
+        Set<String> names = new HashSet<String>();
+        for (String key : keys()) {
+            if (!leased(filename(key))) {
+                names.add(filename(key));
+            }
+        }
+        if (names.isEmpty()) {
+            return;
+        }
+        String[] filenames = names.toArray(new String[names.size()]);
+        fileInfo[] infos = server.queryFiles(filenames);
+        for (String key : keys()) {
+            String filename = filename(key);
+            if (!names.contains(filename)) {
+                continue;
+            }
+            for (fileInfo info : infos) {
+                if (info.filename.equals(filename)) {
+                    Entry cached = memory.get(key);
+                    int version = (cached != null) ? cached.version : version(new File(directory, key));
+                    if (!info.present || info.version != version) {
+                        forget(key);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops every cached range of a file and gives up our lease on it
+     * 
+     * @param filename
+     */
+    public synchronized void discard(String filename) {
+        for (String key : keys()) {
+            if (filename(key).equals(filename)) {
+                forget(key);
+            }
+        }
+        if (leases.remove(filename) != null) {
+            server.releaseLease(filename, listener);
+        }
+    }
+
+    /**
+     * Called back by the server when a file we hold a lease on changes.
+     * Ranges read before the new version are dropped.
+     */
+    @Override
+    public synchronized void invalidate(String filename, int version) {
+        leases.remove(filename);
+        for (String key : keys()) {
+            if (filename(key).equals(filename)) {
+                Entry cached = memory.get(key);
+                int cachedVersion = (cached != null) ? cached.version : version(new File(directory, key));
+                if (version < 0 || cachedVersion < version) {
+                    forget(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of reads served from the cache
+     * 
+     * @return hits since the cache was created
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * Gets the number of reads that had to fetch the data from the server
+     * 
+     * @return misses since the cache was created
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    /**
+     * Takes a lease on a file if we don't hold one already
+     * 
+     * @param filename
+     */
+    private void renew(String filename) {
+        if (listener == null || leased(filename)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        lease lease = server.acquireLease(filename, listener);
+        leases.put(filename, now + lease.duration);
+    }
+
+    /**
+     * Checks if we hold a lease on a file that hasn't run out
+     * 
+     * @param filename
+     * @return true if the server will call us back when the file changes
+     */
+    private boolean leased(String filename) {
+        Long expires = leases.get(filename);
+        return expires != null && expires > System.currentTimeMillis();
+    }
+
+    /**
+     * Keeps a range in memory, dropping the least recently used ranges to
+     * make room
+     * 
+     * @param key
+     * @param version
+     * @param file
+     *            - the range on disk
+     * @throws IOException
+     */
+    private void remember(String key, int version, File file) throws IOException {
+        byte[] data;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readInt();
+            data = new byte[(int) (file.length() - 4)];
+            in.readFully(data);
+        }
+        memory.put(key, new Entry(version, data));
+        memoryUsed += data.length;
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryUsed > memoryCapacity && eldest.hasNext()) {
+            memoryUsed -= eldest.next().data.length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Removes a range from memory and disk
+     * 
+     * @param key
+     */
+    private void forget(String key) {
+        Entry cached = memory.remove(key);
+        if (cached != null) {
+            memoryUsed -= cached.data.length;
+        }
+        new File(directory, key).delete();
+    }
+
+    /**
+     * Gets the version a range on disk was read at
+     * 
+     * @param file
+     * @return the version, or -1 if the range isn't cached
+     */
+    private static int version(File file) {
+        if (!file.exists()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return in.readInt();
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable cache file " + file + ": " + e);
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the data of a range on disk out
+     * 
+     * @param file
+     * @param out
+     * @throws IOException
+     */
+    private static void copy(File file, OutputStream out) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readInt();
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    /**
+     * Lists the ranges cached on disk
+     * 
+     * @return the name of each range's file
+     */
+    private ArrayList<String> keys() {
+        ArrayList<String> keys = new ArrayList<String>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(".tmp")) {
+                    keys.add(name);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Names the file a range is kept in on disk
+     * 
+     * @param filename
+     * @param start
+     * @param end
+     * @return file name of the range
+     */
+    private static String key(String filename, long start, long end) {
+        try {
+            return URLEncoder.encode(filename, "UTF-8") + "@" + start + "-" + end;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the file a cached range belongs to
+     * 
+     * @param key
+     *            - file name of the range
+     * @return name of the file on the server
+     */
+    private static String filename(String key) {
+        try {
+            return URLDecoder.decode(key.substring(0, key.lastIndexOf('@')), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -4,12 +4,16 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Scanner;
 
 import org.omg.CORBA.ORB;
 import org.omg.CosNaming.NamingContextExt;
 import org.omg.CosNaming.NamingContextExtHelper;
+import org.omg.PortableServer.POA;
+import org.omg.PortableServer.POAHelper;
 
+import NPFSApp.FileListenerHelper;
 import NPFSApp.FileServer;
 import NPFSApp.FileServerHelper;
 
@@ -25,6 +29,16 @@ public class ClientRunner {
      */
     static FileServer fsImpl;
 
+    /**
+     * Ranges of files read so far
+     */
+    static ClientCache cache;
+
+    /**
+     * Number of bytes moved per readChunk/writeChunk call
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
     /**
      * 
      * @param args
@@ -44,6 +58,13 @@ public class ClientRunner {
             String name = "NPFS";
             fsImpl = FileServerHelper.narrow(ncRef.resolve_str(name));
 
+            cache = new ClientCache(fsImpl, new File(".npfs-cache"), ClientCache.DEFAULT_MEMORY);
+
+            // take calls from the server when files we've read change
+            POA rootpoa = POAHelper.narrow(orb.resolve_initial_references("RootPOA"));
+            rootpoa.the_POAManager().activate();
+            cache.setListener(FileListenerHelper.narrow(rootpoa.servant_to_reference(cache)));
+
             System.out.println("Obtained a handle on server object: " + fsImpl.getIpAddress());
             System.out.println("Remote server is also connected to ");
             for (String addr : fsImpl.getConnectedServers()) {
@@ -55,6 +76,8 @@ public class ClientRunner {
                 final int sessionID = fsImpl.getSessionID();
 
                 while (run) {
+                    // drop anything cached that has changed since last time
+                    cache.revalidate();
                     for (String file : fsImpl.getAllFiles()) {
                         System.out.println(file);
                     }
@@ -76,16 +99,16 @@ public class ClientRunner {
 
                     } while (end <= start || start < 0 || start > byteLength || end < 0 || end > byteLength);
 
-                    byte[] data = fsImpl.openFile(filename, start, end, sessionID);
-                    System.out.println(data);
-
-                    // work with a temp file version of the data
+                    // work with a temp file version of the data, pulled down
+                    // a chunk at a time unless we already have it
                     Path tmp = (new File("~" + filename)).toPath();
-                    try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE)) {
+                    try (OutputStream out = Files.newOutputStream(tmp, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING)) {
                         System.out.println("making tmp: " + tmp.toString());
-                        // string to bytes
-                        out.write(data);
+                        cache.open(filename, start, end, sessionID, out);
                     }
+                    Files.copy(tmp, System.out);
+                    System.out.println();
 
                     // write read in section to a hidden tmp file
                     // Process proc = Runtime.getRuntime().exec("nano " +
@@ -93,25 +116,23 @@ public class ClientRunner {
 
                     // proc.waitFor();
 
-                    String readIn = new String(data);
-                    System.out.println(readIn);
-
                     // reread the file
                     try (InputStream tmpStream = Files.newInputStream(tmp, StandardOpenOption.READ)) {
-                        File f = tmp.toFile();
-                        int len = (int) f.length();
-
-                        byte[] out = new byte[len];
-                        tmpStream.read(out);
-
                         System.out.println("Saving file to server");
-                        fsImpl.closeFile(out, sessionID);
+                        byte[] buffer = new byte[CHUNK_SIZE];
+                        int read;
+                        while ((read = tmpStream.read(buffer)) != -1) {
+                            fsImpl.writeChunk(Arrays.copyOf(buffer, read), sessionID);
+                        }
+                        fsImpl.commit(sessionID);
                     }
+                    cache.discard(filename);
 
                     Files.delete(tmp);
                     System.out.println("tmp removed, changes pushed upstream");
 
                 }
+                fsImpl.closeSession(sessionID);
             }
             System.out.println();
 
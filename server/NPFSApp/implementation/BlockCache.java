@@ -0,0 +1,285 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recently read blocks of files in memory outside of the heap, so
+ * ranges many sessions open are read from disk once. Blocks are kept per
+ * version of a file and the least recently used block is dropped to make
+ * room for a new one.
+ * 
+ * @author nhydock
+ *
+ */
+public class BlockCache {
+
+    /**
+     * Size of each cached block
+     */
+    public static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Bytes of blocks kept when no capacity is given
+     */
+    public static final int DEFAULT_CAPACITY = 64 * 1024 * 1024;
+
+    /**
+     * Most bytes of blocks that fit in the cache's single buffer
+     */
+    public static final int MAX_CAPACITY = (Integer.MAX_VALUE / BLOCK_SIZE) * BLOCK_SIZE;
+
+    /**
+     * Identifies a block of a version of a file
+     */
+    private static class Key {
+        final String filename;
+        final int version;
+        final long block;
+
+        Key(String filename, int version, long block) {
+            this.filename = filename;
+            this.version = version;
+            this.block = block;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return block == other.block && version == other.version && filename.equals(other.filename);
+        }
+
+        @Override
+        public int hashCode() {
+            return (filename.hashCode() * 31 + version) * 31 + (int) (block ^ (block >>> 32));
+        }
+    }
+
+    /**
+     * Where a cached block is kept
+     */
+    private static class Entry {
+        final int slot;
+        final int length;
+
+        Entry(int slot, int length) {
+            this.slot = slot;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Memory the blocks are kept in, split into slots of a block each
+     */
+    private final ByteBuffer slab;
+
+    /**
+     * Cached blocks, least recently used first
+     */
+    private final LinkedHashMap<Key, Entry> blocks;
+
+    /**
+     * Slots not holding a block
+     */
+    private final ArrayDeque<Integer> free;
+
+    /**
+     * Bumped whenever blocks are invalidated, so blocks read from disk before
+     * then aren't cached
+     */
+    private long generation;
+
+    /**
+     * Reads served from memory
+     */
+    private final AtomicLong hits;
+
+    /**
+     * Reads that had to go to disk
+     */
+    private final AtomicLong misses;
+
+    /**
+     * Creates an empty cache
+     * 
+     * @param capacity
+     *            - bytes of blocks to keep, or 0 to cache nothing
+     */
+    public BlockCache(int capacity) {
+        int slots = capacity / BLOCK_SIZE;
+        this.slab = ByteBuffer.allocateDirect(slots * BLOCK_SIZE);
+        this.blocks = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+        this.free = new ArrayDeque<Integer>();
+        for (int i = 0; i < slots; i++) {
+            free.add(i);
+        }
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+    }
+
+    /**
+     * Reads bytes of a file starting at a position, through the cache
+     * 
+     * @param store
+     *            - store to read blocks that aren't cached from
+     * @param filename
+     * @param version
+     *            - current version of the file
+     * @param position
+     *            - offset into the file to read from
+     * @param dst
+     *            - buffer to fill
+     * @return number of bytes read, or -1 if the position is past the end
+     * @throws IOException
+     */
+    public int read(FileStore store, String filename, int version, long position, ByteBuffer dst)
+            throws IOException {
+        int total = 0;
+        while (dst.hasRemaining()) {
+            Key key = new Key(filename, version, position / BLOCK_SIZE);
+            int offset = (int) (position % BLOCK_SIZE);
+            int copied = copy(key, offset, dst);
+            if (copied < 0) {
+                misses.incrementAndGet();
+                load(store, key);
+                copied = copy(key, offset, dst);
+                if (copied < 0) {
+                    // nowhere to keep the block, so read straight through
+                    copied = store.read(filename, position, dst);
+                }
+            } else {
+                hits.incrementAndGet();
+            }
+            if (copied <= 0) {
+                // past the end of the file
+                break;
+            }
+            position += copied;
+            total += copied;
+        }
+        return (total == 0 && dst.hasRemaining()) ? -1 : total;
+    }
+
+    /**
+     * Copies part of a cached block
+     * 
+     * @param key
+     * @param offset
+     *            - offset into the block to start at
+     * @param dst
+     * @return number of bytes copied, 0 if the offset is past the end of the
+     *         file, or -1 if the block isn't cached
+     */
+    private synchronized int copy(Key key, int offset, ByteBuffer dst) {
+        Entry entry = blocks.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        int length = Math.min(entry.length - offset, dst.remaining());
+        if (length <= 0) {
+            return 0;
+        }
+        ByteBuffer src = slab.duplicate();
+        src.position(entry.slot * BLOCK_SIZE + offset);
+        src.limit(src.position() + length);
+        dst.put(src);
+        return length;
+    }
+
+    /**
+     * Reads a block from disk and caches it, dropping the least recently used
+     * block if the cache is full
+     * 
+     * @param store
+     * @param key
+     * @throws IOException
+     */
+    private void load(FileStore store, Key key) throws IOException {
+        long started;
+        synchronized (this) {
+            if (slab.capacity() == 0 || blocks.containsKey(key)) {
+                return;
+            }
+            started = generation;
+        }
+
+        // read without holding the lock, so hits aren't held up by the disk
+        ByteBuffer data = ByteBuffer.allocate(BLOCK_SIZE);
+        long position = key.block * BLOCK_SIZE;
+        while (data.hasRemaining()) {
+            if (store.read(key.filename, position + data.position(), data) <= 0) {
+                break;
+            }
+        }
+        data.flip();
+
+        synchronized (this) {
+            if (started != generation || blocks.containsKey(key)) {
+                return;
+            }
+            Integer slot = free.poll();
+            if (slot == null) {
+                Iterator<Entry> eldest = blocks.values().iterator();
+                slot = eldest.next().slot;
+                eldest.remove();
+            }
+            ByteBuffer target = slab.duplicate();
+            target.position(slot * BLOCK_SIZE);
+            target.put(data);
+            blocks.put(key, new Entry(slot, data.limit()));
+        }
+    }
+
+    /**
+     * Drops every cached block of a file because it has changed or been
+     * removed
+     * 
+     * @param filename
+     */
+    public synchronized void invalidate(String filename) {
+        generation++;
+        Iterator<Map.Entry<Key, Entry>> entries = blocks.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Key, Entry> entry = entries.next();
+            if (entry.getKey().filename.equals(filename)) {
+                free.add(entry.getValue().slot);
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of block reads served from memory
+     * 
+     * @return hits since the cache was created
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of block reads that had to go to disk
+     * 
+     * @return misses since the cache was created
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of bytes the cache can hold
+     * 
+     * @return capacity in bytes
+     */
+    public int capacity() {
+        return slab.capacity();
+    }
+}
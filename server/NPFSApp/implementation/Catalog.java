@@ -0,0 +1,334 @@
+package NPFSApp.implementation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import NPFSApp.FileServer;
+import NPFSApp.catalogEntry;
+
+/**
+ * Replicated record of which servers in the network hold which files, and at
+ * what version. Each server owns the entries for its own host and pushes
+ * changes to them to its peers in small batches, so listing every file in
+ * the network never has to ask the other servers anything. Batches are
+ * numbered by the server sending them, so one that arrives after a later
+ * batch from the same server is dropped rather than undoing it.
+ * 
+ * @author nhydock
+ *
+ */
+public class Catalog {
+
+    /**
+     * Milliseconds between pushing batched changes out to peers
+     */
+    private static final long FLUSH_INTERVAL = 200;
+
+    /**
+     * Seconds between pulling a full copy of each peer's entries, to repair
+     * anything a lost delta left behind
+     */
+    private static final long SYNC_INTERVAL = 60;
+
+    /**
+     * Versions of each file, by file name then host
+     */
+    final ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>> files;
+
+    /**
+     * Changes to our own entries waiting to be pushed
+     */
+    final ConcurrentLinkedQueue<catalogEntry> pending;
+
+    /**
+     * Address of this server
+     */
+    final String host;
+
+    /**
+     * Number of our last batch pushed. Starts from the clock, so a restarted
+     * server carries on past the batches it sent before.
+     */
+    private long sequence;
+
+    /**
+     * Number of the last batch applied from each peer, by host
+     */
+    private final HashMap<String, Long> applied;
+
+    /**
+     * Servers our changes are pushed to
+     */
+    final Collection<FileServer> peers;
+
+    /**
+     * Runs the push and repair tasks
+     */
+    private final ScheduledExecutorService gossip;
+
+    /**
+     * Creates a catalog for a server
+     * 
+     * @param host
+     *            - address of this server
+     * @param peers
+     *            - the server's list of connected servers
+     */
+    public Catalog(String host, Collection<FileServer> peers) {
+        this.files = new ConcurrentHashMap<String, ConcurrentHashMap<String, Integer>>();
+        this.pending = new ConcurrentLinkedQueue<catalogEntry>();
+        this.host = host;
+        this.peers = peers;
+        this.sequence = System.currentTimeMillis();
+        this.applied = new HashMap<String, Long>();
+        this.gossip = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "catalog-gossip");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.gossip.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, FLUSH_INTERVAL, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+        this.gossip.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (FileServer peer : peers()) {
+                    pull(peer);
+                }
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Records a change to one of our own files and queues it to be pushed
+     * 
+     * @param filename
+     * @param version
+     *            - new version, or -1 if we no longer have the file
+     */
+    public void publish(String filename, int version) {
+        catalogEntry entry = new catalogEntry(filename, host, version);
+        apply(entry);
+        pending.add(entry);
+    }
+
+    /**
+     * Applies a batch of changes received from a peer, unless a later batch
+     * from it has already been applied
+     * 
+     * @param peerHost
+     *            - address of the peer
+     * @param batch
+     *            - number of the batch
+     * @param delta
+     */
+    public void apply(String peerHost, long batch, catalogEntry[] delta) {
+        synchronized (applied) {
+            Long last = applied.get(peerHost);
+            if (last != null && batch <= last) {
+                return;
+            }
+            applied.put(peerHost, batch);
+            for (catalogEntry entry : delta) {
+                apply(entry);
+            }
+        }
+    }
+
+    /**
+     * Replaces everything known about a peer's files with a full copy of its
+     * entries
+     * 
+     * @param peerHost
+     *            - address of the peer
+     * @param entries
+     *            - all of the peer's entries
+     */
+    public void replace(String peerHost, catalogEntry[] entries) {
+        ConcurrentHashMap<String, Boolean> present = new ConcurrentHashMap<String, Boolean>();
+        for (catalogEntry entry : entries) {
+            present.put(entry.filename, Boolean.TRUE);
+            apply(entry);
+        }
+        for (String filename : files.keySet()) {
+            if (!present.containsKey(filename)) {
+                remove(filename, peerHost);
+            }
+        }
+    }
+
+    /**
+     * Gets a full copy of a peer's entries and takes them as the truth about
+     * that peer
+     * 
+     * @param peer
+     */
+    public void pull(FileServer peer) {
+        try {
+            replace(peer.getIpAddress(), peer.getCatalog());
+        } catch (org.omg.CORBA.SystemException e) {
+            System.out.println("Unable to sync catalog with peer: " + e);
+        }
+    }
+
+    /**
+     * Gets the entries for files held by this server
+     * 
+     * @return our own entries
+     */
+    public catalogEntry[] local() {
+        ArrayList<catalogEntry> entries = new ArrayList<catalogEntry>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Integer>> file : files.entrySet()) {
+            Integer version = file.getValue().get(host);
+            if (version != null) {
+                entries.add(new catalogEntry(file.getKey(), host, version));
+            }
+        }
+        return entries.toArray(new catalogEntry[entries.size()]);
+    }
+
+    /**
+     * Lists every file in the network along with the host holding its newest
+     * version, preferring this server when it's tied for newest
+     * 
+     * @return "host filename" strings
+     */
+    public String[] listing() {
+        ArrayList<String> listing = new ArrayList<String>();
+        for (Map.Entry<String, ConcurrentHashMap<String, Integer>> file : files.entrySet()) {
+            String newest = null;
+            int version = -1;
+            for (Map.Entry<String, Integer> holder : file.getValue().entrySet()) {
+                int v = holder.getValue();
+                if (v > version || (v == version && holder.getKey().equals(host))) {
+                    version = v;
+                    newest = holder.getKey();
+                }
+            }
+            if (newest != null) {
+                listing.add(newest + " " + file.getKey());
+            }
+        }
+        return listing.toArray(new String[listing.size()]);
+    }
+
+    /**
+     * Lists the other hosts holding a file
+     * 
+     * @param filename
+     * @return addresses of the hosts, not including this server
+     */
+    public List<String> holders(String filename) {
+        ArrayList<String> holders = new ArrayList<String>();
+        Map<String, Integer> versions = files.get(filename);
+        if (versions != null) {
+            for (String holder : versions.keySet()) {
+                if (!holder.equals(host)) {
+                    holders.add(holder);
+                }
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Applies a single entry
+     * 
+     * @param entry
+     */
+    void apply(catalogEntry entry) {
+        if (entry.version == -1) {
+            remove(entry.filename, entry.host);
+            return;
+        }
+        while (true) {
+            ConcurrentHashMap<String, Integer> holders = files.get(entry.filename);
+            if (holders == null) {
+                ConcurrentHashMap<String, Integer> created = new ConcurrentHashMap<String, Integer>();
+                holders = files.putIfAbsent(entry.filename, created);
+                if (holders == null) {
+                    holders = created;
+                }
+            }
+            synchronized (holders) {
+                // the map may have been dropped for being empty in the
+                // meantime, in which case a new one is needed
+                if (files.get(entry.filename) == holders) {
+                    holders.put(entry.host, entry.version);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a host from a file's holders, dropping the file once nobody
+     * holds it
+     * 
+     * @param filename
+     * @param holder
+     *            - address of the host
+     */
+    private void remove(String filename, String holder) {
+        ConcurrentHashMap<String, Integer> holders = files.get(filename);
+        if (holders == null) {
+            return;
+        }
+        synchronized (holders) {
+            holders.remove(holder);
+            if (holders.isEmpty()) {
+                files.remove(filename, holders);
+            }
+        }
+    }
+
+    /**
+     * Pushes any queued changes to every peer in one batch
+     */
+    void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        ArrayList<catalogEntry> batch = new ArrayList<catalogEntry>();
+        catalogEntry entry;
+        while ((entry = pending.poll()) != null) {
+            batch.add(entry);
+        }
+        catalogEntry[] delta = batch.toArray(new catalogEntry[batch.size()]);
+        // only ever called from the gossip thread
+        sequence++;
+        for (FileServer peer : peers()) {
+            try {
+                peer.catalogDelta(host, sequence, delta);
+            } catch (org.omg.CORBA.SystemException e) {
+                System.out.println("Unable to push catalog changes to peer: " + e);
+            }
+        }
+    }
+
+    /**
+     * Copies the list of peers so it can be walked while servers connect
+     * 
+     * @return the current peers
+     */
+    private List<FileServer> peers() {
+        synchronized (peers) {
+            return new ArrayList<FileServer>(peers);
+        }
+    }
+}
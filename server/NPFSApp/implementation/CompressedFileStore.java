@@ -0,0 +1,872 @@
+package NPFSApp.implementation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Storage layout that keeps files compressed on disk. A file is split into
+ * blocks of up to {@link #BLOCK_SIZE} bytes, each deflated on its own, and an
+ * index of where each block is stored lets a read inflate only the blocks it
+ * covers. A write recompresses just the blocks its range touches and appends
+ * them after everything else along with a record of the blocks they replace,
+ * so readers of the old index are never disturbed and a write costs the
+ * blocks it touches rather than the whole index. The blocks left behind are
+ * reclaimed by rewriting the file once they take up more room than the live
+ * ones.
+ * 
+ * A compressed file starts with a header holding a magic number, a serial
+ * that changes whenever the header does, and where the newest index record
+ * is. Each record points back at the one before it and replaces a run of
+ * blocks with new ones, and the oldest holds the whole index. The records are
+ * folded into a new whole index every {@link #MAX_LOG} writes and whenever the
+ * file is rewritten, so loading an index never replays many of them. Each
+ * index entry gives a block's offset, how many bytes it takes on disk and how
+ * many it holds, and blocks that don't compress are stored as they are. Files
+ * that turn up in the directory uncompressed are read flat until they're
+ * first written to or replaced.
+ * 
+ * @author nhydock
+ *
+ */
+public class CompressedFileStore implements FileStore {
+
+    /**
+     * Most bytes of a file held by one block
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Marks the start of a compressed file
+     */
+    private static final long MAGIC = 0x4e5046535a424c4bL;
+
+    /**
+     * Size of a file's header: magic number, serial, index offset and block
+     * count
+     */
+    static final int HEADER = 8 + 8 + 8 + 4;
+
+    /**
+     * Size of an index record's header: where the previous record is, the
+     * first block it replaces, how many it replaces and how many entries
+     * follow
+     */
+    private static final int RECORD = 8 + 4 + 4 + 4;
+
+    /**
+     * Most records written on top of a whole index before it's written again
+     */
+    static final int MAX_LOG = 64;
+
+    /**
+     * Size of an index entry: offset, stored length and length
+     */
+    private static final int ENTRY = 8 + 4 + 4;
+
+    /**
+     * Used for files that aren't compressed
+     */
+    final FlatFileStore flat;
+
+    /**
+     * Index of each compressed file read so far
+     */
+    private final ConcurrentHashMap<String, Index> indexes;
+
+    /**
+     * Where the blocks of a compressed file are
+     */
+    private static class Index {
+        /**
+         * Serial of the header the index was read from
+         */
+        final long serial;
+
+        /**
+         * Where the newest index record is
+         */
+        final long at;
+
+        /**
+         * Records written on top of the last whole index
+         */
+        final int logged;
+
+        final long[] offsets;
+        final int[] stored;
+        final int[] lengths;
+
+        /**
+         * Position in the file's contents each block starts at, followed by
+         * the size of the contents
+         */
+        final long[] starts;
+
+        /**
+         * Bytes on disk still in use, header and index included
+         */
+        final long live;
+
+        Index(long serial, long at, int logged, long[] offsets, int[] stored, int[] lengths) {
+            this.serial = serial;
+            this.at = at;
+            this.logged = logged;
+            this.offsets = offsets;
+            this.stored = stored;
+            this.lengths = lengths;
+            this.starts = new long[offsets.length + 1];
+            long used = HEADER + RECORD + (long) offsets.length * ENTRY;
+            for (int i = 0; i < offsets.length; i++) {
+                starts[i + 1] = starts[i] + lengths[i];
+                used += stored[i];
+            }
+            this.live = used;
+        }
+
+        int count() {
+            return offsets.length;
+        }
+
+        long size() {
+            return starts[offsets.length];
+        }
+
+        /**
+         * Finds the block holding a position
+         * 
+         * @param position
+         * @return index of the block, or the block count if the position is
+         *         past the end
+         */
+        int block(long position) {
+            if (position >= size()) {
+                return count();
+            }
+            int found = Arrays.binarySearch(starts, 0, count(), position);
+            return (found >= 0) ? found : -found - 2;
+        }
+
+        /**
+         * Gets the index with a run of blocks replaced
+         * 
+         * @param serial
+         * @param at
+         *            - where the record of the change is
+         * @param logged
+         *            - records on top of the last whole index, counting this
+         *            one
+         * @param first
+         *            - first block replaced
+         * @param removed
+         *            - number of blocks replaced
+         * @param entries
+         *            - where the new blocks are, laid out as on disk
+         * @param added
+         *            - number of new blocks
+         * @return the new index
+         */
+        Index replace(long serial, long at, int logged, int first, int removed, ByteBuffer entries, int added) {
+            int count = count();
+            int total = count - removed + added;
+            long[] offsets = new long[total];
+            int[] stored = new int[total];
+            int[] lengths = new int[total];
+            System.arraycopy(this.offsets, 0, offsets, 0, first);
+            System.arraycopy(this.stored, 0, stored, 0, first);
+            System.arraycopy(this.lengths, 0, lengths, 0, first);
+            for (int i = first; i < first + added; i++) {
+                offsets[i] = entries.getLong();
+                stored[i] = entries.getInt();
+                lengths[i] = entries.getInt();
+            }
+            int last = first + removed;
+            System.arraycopy(this.offsets, last, offsets, first + added, count - last);
+            System.arraycopy(this.stored, last, stored, first + added, count - last);
+            System.arraycopy(this.lengths, last, lengths, first + added, count - last);
+            return new Index(serial, at, logged, offsets, stored, lengths);
+        }
+    }
+
+    /**
+     * An index with no blocks, that the records of a file are replayed onto
+     */
+    private static final Index EMPTY = new Index(0, 0, 0, new long[0], new int[0], new int[0]);
+
+    /**
+     * Creates a compressed store over a directory
+     * 
+     * @param directory
+     */
+    public CompressedFileStore(File directory) {
+        this.flat = new FlatFileStore(directory);
+        this.indexes = new ConcurrentHashMap<String, Index>();
+    }
+
+    @Override
+    public long size(String filename) {
+        try (FileChannel channel = FileChannel.open(flat.path(filename), StandardOpenOption.READ)) {
+            Index index = index(filename, channel);
+            return (index == null) ? channel.size() : index.size();
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return flat.size(filename);
+        }
+    }
+
+    @Override
+    public int read(String filename, long position, ByteBuffer dst) throws IOException {
+        try (FileChannel channel = FileChannel.open(flat.path(filename), StandardOpenOption.READ)) {
+            Index index = index(filename, channel);
+            if (index == null) {
+                return flat.read(filename, position, dst);
+            }
+            if (position >= index.size()) {
+                return -1;
+            }
+            int start = dst.position();
+            try (BlockReader blocks = BlockReader.open(channel, index)) {
+                for (int block = index.block(position); dst.hasRemaining() && block < index.count(); block++) {
+                    ByteBuffer data = blocks.read(block);
+                    data.position((int) (position - index.starts[block]));
+                    data.limit(Math.min(data.limit(), data.position() + dst.remaining()));
+                    position += data.remaining();
+                    dst.put(data);
+                }
+            }
+            return dst.position() - start;
+        }
+    }
+
+    @Override
+    public long transferTo(String filename, long position, long count, WritableByteChannel target)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(flat.path(filename), StandardOpenOption.READ)) {
+            Index index = index(filename, channel);
+            if (index == null) {
+                return FlatFileStore.transfer(channel, position, count, target);
+            }
+            long end = position + Math.min(count, Math.max(0, index.size() - position));
+            long sent = 0;
+            try (BlockReader blocks = BlockReader.open(channel, index)) {
+                for (int block = index.block(position); position < end; block++) {
+                    ByteBuffer data = blocks.read(block);
+                    data.position((int) (position - index.starts[block]));
+                    data.limit((int) Math.min(data.limit(), end - index.starts[block]));
+                    int length = data.remaining();
+                    while (data.hasRemaining()) {
+                        target.write(data);
+                    }
+                    position += length;
+                    sent += length;
+                }
+            }
+            return sent;
+        }
+    }
+
+    /**
+     * Recompresses the blocks the range touches and appends them with a new
+     * index. A file that isn't compressed yet is packed with the change made
+     * on the way.
+     */
+    @Override
+    public void write(String filename, long start, long end, ReadableByteChannel data, long length)
+            throws IOException {
+        Path path = flat.path(filename);
+        Index index;
+        long fileLength = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            index = index(filename, channel);
+            if (index != null) {
+                index = splice(channel, index, start, end, data, length);
+                indexes.put(filename, index);
+                fileLength = channel.size();
+            }
+        }
+
+        if (index == null) {
+            Path packed = temp(filename);
+            try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+                index = pack(in, start, end, data, length, packed);
+            }
+            Files.move(packed, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            indexes.put(filename, index);
+        } else if (fileLength - index.live > index.live) {
+            compact(filename, index);
+        }
+    }
+
+    /**
+     * Packs the new copy into the compressed layout on its way into place
+     */
+    @Override
+    public void replace(String filename, Path replacement) throws IOException {
+        Path packed = temp(filename);
+        Index index;
+        try (FileChannel in = FileChannel.open(replacement, StandardOpenOption.READ)) {
+            index = pack(in, 0, 0, null, 0, packed);
+        }
+        Files.move(packed, flat.path(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexes.put(filename, index);
+        Files.delete(replacement);
+    }
+
+    /**
+     * Drops the file's index
+     */
+    @Override
+    public void invalidate(String filename) {
+        indexes.remove(filename);
+        flat.invalidate(filename);
+    }
+
+    /**
+     * Gets the index of a file, reading it again if the file's header has
+     * changed since it was last read
+     * 
+     * @param filename
+     * @param channel
+     *            - the file, open for reading
+     * @return the index, or null if the file isn't compressed
+     * @throws IOException
+     */
+    private Index index(String filename, FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        if (channel.size() < HEADER || !readFully(channel, header, 0, true) || header.getLong(0) != MAGIC) {
+            return null;
+        }
+        long serial = header.getLong(8);
+        long at = header.getLong(16);
+        int count = header.getInt(24);
+        Index index = indexes.get(filename);
+        if (index != null && index.serial == serial) {
+            return index;
+        }
+        index = replay(channel, serial, at);
+        if (index == null || index.count() != count) {
+            // just happens to start like a compressed file
+            return null;
+        }
+        indexes.put(filename, index);
+        return index;
+    }
+
+    /**
+     * Rebuilds an index from its records, oldest first
+     * 
+     * @param channel
+     *            - the file, open for reading
+     * @param serial
+     *            - serial of the file's header
+     * @param at
+     *            - where the newest record is
+     * @return the index, or null if the records don't make sense
+     * @throws IOException
+     */
+    private static Index replay(FileChannel channel, long serial, long at) throws IOException {
+        ArrayList<ByteBuffer> records = new ArrayList<ByteBuffer>();
+        long record = at;
+        do {
+            if (records.size() > MAX_LOG || record < HEADER || record + RECORD > channel.size()) {
+                return null;
+            }
+            ByteBuffer head = ByteBuffer.allocate(RECORD);
+            readFully(channel, head, record, false);
+            int added = head.getInt(16);
+            if (added < 0 || record + RECORD + (long) added * ENTRY > channel.size()) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(RECORD + added * ENTRY);
+            readFully(channel, body, record, false);
+            body.flip();
+            records.add(body);
+            record = head.getLong(0);
+        } while (record != 0);
+
+        Index index = EMPTY;
+        for (int i = records.size() - 1; i >= 0; i--) {
+            ByteBuffer body = records.get(i);
+            // skip where the previous record is, which has been followed
+            body.position(8);
+            int first = body.getInt();
+            int removed = body.getInt();
+            int added = body.getInt();
+            if (first < 0 || removed < 0 || first > index.count() - removed) {
+                return null;
+            }
+            index = index.replace(serial, at, records.size() - 1 - i, first, removed, body, added);
+        }
+        return index;
+    }
+
+    /**
+     * Replaces a range of a compressed file, appending the blocks it touches
+     * rebuilt around the new data and then a record of what they replace
+     * 
+     * @param channel
+     *            - the file, open for reading and writing
+     * @param index
+     *            - the file's current index
+     * @param start
+     * @param end
+     * @param data
+     * @param length
+     * @return the file's new index
+     * @throws IOException
+     */
+    private static Index splice(FileChannel channel, Index index, long start, long end, ReadableByteChannel data,
+            long length) throws IOException {
+        // blocks [first, last) are rebuilt, an append at the end joins the
+        // last block so small appends don't pile up as small blocks
+        int count = index.count();
+        int first = (start > 0 && start >= index.size()) ? index.block(start - 1) : index.block(start);
+        int last = (end > start) ? index.block(end - 1) + 1 : Math.min(first + 1, count);
+        last = Math.max(Math.min(last, count), first);
+
+        Packer packer = new Packer(channel, channel.size());
+        try (BlockReader blocks = BlockReader.open(channel, index)) {
+            if (first < count && start > index.starts[first]) {
+                ByteBuffer head = blocks.read(first);
+                head.limit((int) (start - index.starts[first]));
+                packer.add(head);
+            }
+            packer.add(data, length);
+            if (last > first && index.starts[last] > end) {
+                ByteBuffer tail = blocks.read(last - 1);
+                tail.position((int) (end - index.starts[last - 1]));
+                packer.add(tail);
+            }
+            packer.flush();
+        } finally {
+            packer.end();
+        }
+
+        // once the log is long enough, it's started over from a whole index
+        boolean whole = index.logged >= MAX_LOG;
+        Index spliced = index.replace(index.serial + 1, packer.position, whole ? 0 : index.logged + 1, first,
+                last - first, packer.entries(), packer.count);
+        if (whole) {
+            return commit(channel, spliced, 0, 0, 0, spliced.count());
+        }
+        return commit(channel, spliced, index.at, first, last - first, packer.count);
+    }
+
+    /**
+     * Writes a new compressed file from an uncompressed one, replacing a
+     * range of it on the way
+     * 
+     * @param in
+     *            - the uncompressed file
+     * @param start
+     *            - start of the range being replaced
+     * @param end
+     *            - end of the range being replaced
+     * @param data
+     *            - channel supplying the new data, or null if there is none
+     * @param length
+     *            - number of bytes to take from the channel
+     * @param out
+     *            - where to write the compressed file
+     * @return index of the new file
+     * @throws IOException
+     */
+    private static Index pack(FileChannel in, long start, long end, ReadableByteChannel data, long length, Path out)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            Packer packer = new Packer(channel, HEADER);
+            try {
+                long size = in.size();
+                in.position(0);
+                packer.add(in, Math.min(start, size));
+                if (data != null) {
+                    packer.add(data, length);
+                }
+                in.position(Math.min(end, size));
+                packer.add(in, size - Math.min(end, size));
+                packer.flush();
+            } finally {
+                packer.end();
+            }
+            Index packed = EMPTY.replace(ThreadLocalRandom.current().nextLong(), packer.position, 0, 0, 0,
+                    packer.entries(), packer.count);
+            return commit(channel, packed, 0, 0, 0, packed.count());
+        }
+    }
+
+    /**
+     * Rewrites a compressed file without the blocks nothing points at
+     * anymore, copying the live blocks over as they are
+     * 
+     * @param filename
+     * @param index
+     *            - the file's current index
+     * @throws IOException
+     */
+    private void compact(String filename, Index index) throws IOException {
+        Path path = flat.path(filename);
+        Path packed = temp(filename);
+        int count = index.count();
+        long[] offsets = new long[count];
+        Index compacted;
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(packed, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = HEADER;
+            out.position(position);
+            for (int i = 0; i < count; i++) {
+                offsets[i] = position;
+                if (FlatFileStore.transfer(in, index.offsets[i], index.stored[i], out) != index.stored[i]) {
+                    throw new EOFException("Block " + i + " of " + filename + " is cut off");
+                }
+                position += index.stored[i];
+            }
+            compacted = commit(out, new Index(index.serial + 1, position, 0, offsets, index.stored, index.lengths), 0,
+                    0, 0, count);
+        }
+        System.out.println("Compacted " + filename + " from " + Files.size(path) + " bytes to " + Files.size(packed));
+        Files.move(packed, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        indexes.put(filename, compacted);
+    }
+
+    /**
+     * Writes an index record at the end of a compressed file, then points the
+     * header at it once it's safely on disk. A record with nothing before it
+     * holds the whole index.
+     * 
+     * @param channel
+     * @param index
+     *            - the file's index once the record is applied, giving where
+     *            the record goes and the new header's serial
+     * @param prev
+     *            - where the previous record is, or 0 if there is none
+     * @param first
+     *            - first block the record replaces
+     * @param removed
+     *            - number of blocks it replaces
+     * @param added
+     *            - number of blocks replacing them, whose entries are taken
+     *            from the index
+     * @return the index
+     * @throws IOException
+     */
+    private static Index commit(FileChannel channel, Index index, long prev, int first, int removed, int added)
+            throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD + added * ENTRY);
+        record.putLong(prev);
+        record.putInt(first);
+        record.putInt(removed);
+        record.putInt(added);
+        for (int i = first; i < first + added; i++) {
+            record.putLong(index.offsets[i]);
+            record.putInt(index.stored[i]);
+            record.putInt(index.lengths[i]);
+        }
+        record.flip();
+        writeFully(channel, record, index.at);
+        channel.force(false);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.putLong(MAGIC);
+        header.putLong(index.serial);
+        header.putLong(index.at);
+        header.putInt(index.count());
+        header.flip();
+        writeFully(channel, header, 0);
+        channel.force(false);
+        return index;
+    }
+
+    /**
+     * Name of the file a compressed copy is built in before being moved into
+     * place
+     * 
+     * @param filename
+     * @return path of the temporary file
+     */
+    private Path temp(String filename) {
+        return flat.path("." + filename + ".packed");
+    }
+
+    /**
+     * Fills a buffer from a position in a file
+     * 
+     * @param channel
+     * @param buffer
+     * @param position
+     * @param mayEnd
+     *            - true if the file may end before the buffer is full
+     * @return false if the file ended first
+     * @throws IOException
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position, boolean mayEnd)
+            throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                if (mayEnd) {
+                    return false;
+                }
+                throw new EOFException("Compressed file is cut off at " + (position + buffer.position() - start));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes a whole buffer at a position in a file
+     * 
+     * @param channel
+     * @param buffer
+     * @param position
+     * @throws IOException
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Reads blocks of a compressed file, inflating them as needed. Most reads
+     * only cover a block or two, so each thread keeps the last reader it
+     * closed, inflater and buffers included, for its next read.
+     */
+    private static class BlockReader implements AutoCloseable {
+        /**
+         * Reader the thread last closed, if it isn't in use
+         */
+        private static final ThreadLocal<BlockReader> spare = new ThreadLocal<BlockReader>();
+
+        FileChannel channel;
+        Index index;
+        final Inflater inflater;
+        final ByteBuffer stored;
+        final ByteBuffer block;
+
+        private BlockReader() {
+            this.inflater = new Inflater();
+            this.stored = ByteBuffer.allocate(BLOCK_SIZE);
+            this.block = ByteBuffer.allocate(BLOCK_SIZE);
+        }
+
+        /**
+         * Gets a reader for a file, reusing the thread's spare one if it has
+         * one
+         * 
+         * @param channel
+         * @param index
+         * @return the reader
+         */
+        static BlockReader open(FileChannel channel, Index index) {
+            BlockReader reader = spare.get();
+            if (reader == null) {
+                reader = new BlockReader();
+            } else {
+                spare.remove();
+            }
+            reader.channel = channel;
+            reader.index = index;
+            return reader;
+        }
+
+        /**
+         * Reads a block. The buffer returned is reused by the next read.
+         * 
+         * @param i
+         *            - index of the block
+         * @return the block's contents
+         * @throws IOException
+         */
+        ByteBuffer read(int i) throws IOException {
+            int size = index.stored[i];
+            int length = index.lengths[i];
+            block.clear();
+            if (size == length) {
+                block.limit(length);
+                readFully(channel, block, index.offsets[i], false);
+            } else {
+                stored.clear();
+                stored.limit(size);
+                readFully(channel, stored, index.offsets[i], false);
+                inflater.reset();
+                inflater.setInput(stored.array(), 0, size);
+                try {
+                    if (inflater.inflate(block.array(), 0, length) != length || !inflater.finished()) {
+                        throw new IOException("Block " + i + " didn't inflate to " + length + " bytes");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt block " + i, e);
+                }
+            }
+            block.position(0);
+            block.limit(length);
+            return block;
+        }
+
+        /**
+         * Keeps the reader as the thread's spare, or frees it if the thread
+         * already has one
+         */
+        @Override
+        public void close() {
+            channel = null;
+            index = null;
+            if (spare.get() == null) {
+                spare.set(this);
+            } else {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Cuts what's added to it into blocks and writes them compressed, one
+     * after another, keeping track of where each went
+     */
+    private static class Packer {
+        final FileChannel out;
+        final Deflater deflater;
+        final ByteBuffer block;
+        final byte[] compressed;
+
+        /**
+         * Where the next block goes
+         */
+        long position;
+
+        long[] offsets;
+        int[] stored;
+        int[] lengths;
+
+        /**
+         * Number of blocks written
+         */
+        int count;
+
+        Packer(FileChannel out, long position) {
+            this.out = out;
+            this.position = position;
+            this.deflater = new Deflater();
+            this.block = ByteBuffer.allocate(BLOCK_SIZE);
+            this.compressed = new byte[BLOCK_SIZE];
+            this.offsets = new long[4];
+            this.stored = new int[4];
+            this.lengths = new int[4];
+        }
+
+        /**
+         * Adds what's left in a buffer
+         * 
+         * @param src
+         * @throws IOException
+         */
+        void add(ByteBuffer src) throws IOException {
+            while (src.hasRemaining()) {
+                int length = Math.min(src.remaining(), block.remaining());
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + length);
+                block.put(part);
+                src.position(part.limit());
+                if (!block.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Adds bytes taken from a channel
+         * 
+         * @param data
+         * @param length
+         *            - number of bytes to take
+         * @throws IOException
+         */
+        void add(ReadableByteChannel data, long length) throws IOException {
+            while (length > 0) {
+                int limit = block.limit();
+                block.limit((int) Math.min(limit, block.position() + length));
+                int read = data.read(block);
+                block.limit(limit);
+                if (read < 0) {
+                    throw new EOFException("Missing " + length + " bytes of new data");
+                }
+                length -= read;
+                if (!block.hasRemaining()) {
+                    flush();
+                }
+            }
+        }
+
+        /**
+         * Writes out the block being filled, deflated if that makes it any
+         * smaller
+         * 
+         * @throws IOException
+         */
+        void flush() throws IOException {
+            int length = block.position();
+            if (length == 0) {
+                return;
+            }
+            deflater.reset();
+            deflater.setInput(block.array(), 0, length);
+            deflater.finish();
+            int size = deflater.deflate(compressed, 0, length);
+            ByteBuffer data = (deflater.finished() && size < length) ? ByteBuffer.wrap(compressed, 0, size)
+                    : (ByteBuffer) block.flip();
+
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                stored = Arrays.copyOf(stored, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            offsets[count] = position;
+            stored[count] = data.remaining();
+            lengths[count] = length;
+            count++;
+            writeFully(out, data, position);
+            position += stored[count - 1];
+            block.clear();
+        }
+
+        /**
+         * Gets the entries of the blocks written, laid out as in an index
+         * 
+         * @return the entries
+         */
+        ByteBuffer entries() {
+            ByteBuffer entries = ByteBuffer.allocate(count * ENTRY);
+            for (int i = 0; i < count; i++) {
+                entries.putLong(offsets[i]);
+                entries.putInt(stored[i]);
+                entries.putInt(lengths[i]);
+            }
+            entries.flip();
+            return entries;
+        }
+
+        void end() {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Channel that sends what's written to it in blocks, each deflated if that
+ * makes it meaningfully smaller and sent as it is otherwise. After a block
+ * that doesn't compress the next few aren't tried, backing off further each
+ * time, so incompressible data costs little more than sending it raw. Read
+ * back with a {@link DecompressingChannel}.
+ * 
+ * Each block is sent as a type byte, the block's length, the length of what
+ * follows, and then the block's data.
+ * 
+ * @author nhydock
+ *
+ */
+class CompressingChannel implements WritableByteChannel {
+
+    /**
+     * Most bytes in a block
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Size of a block's header
+     */
+    static final int HEADER = 9;
+
+    /**
+     * Block types
+     */
+    static final byte RAW = 0, DEFLATED = 1;
+
+    /**
+     * Most blocks skipped after blocks that didn't compress
+     */
+    private static final int MAX_SKIP = 16;
+
+    /**
+     * Channel the blocks are sent over
+     */
+    final WritableByteChannel out;
+
+    /**
+     * Compressor, reused for every block
+     */
+    private final Deflater deflater;
+
+    /**
+     * Data waiting to make up a full block
+     */
+    private final ByteBuffer block;
+
+    /**
+     * Compressed copy of a block
+     */
+    private final byte[] compressed;
+
+    /**
+     * Header of the block being sent
+     */
+    private final ByteBuffer header;
+
+    /**
+     * Number of blocks to send without trying to compress them
+     */
+    private int skip;
+
+    /**
+     * How many blocks were skipped last time
+     */
+    private int backoff;
+
+    /**
+     * Bytes written to us
+     */
+    long rawBytes;
+
+    /**
+     * Bytes of blocks sent, headers included
+     */
+    long sentBytes;
+
+    /**
+     * Creates a compressing channel
+     * 
+     * @param out
+     *            - channel to send the blocks over
+     */
+    CompressingChannel(WritableByteChannel out) {
+        this.out = out;
+        this.deflater = new Deflater(Deflater.BEST_SPEED);
+        this.block = ByteBuffer.allocate(BLOCK_SIZE);
+        this.compressed = new byte[BLOCK_SIZE];
+        this.header = ByteBuffer.allocate(HEADER);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        int written = src.remaining();
+        while (src.hasRemaining()) {
+            int length = Math.min(src.remaining(), block.remaining());
+            ByteBuffer part = src.duplicate();
+            part.limit(part.position() + length);
+            block.put(part);
+            src.position(part.limit());
+            if (!block.hasRemaining()) {
+                sendBlock();
+            }
+        }
+        rawBytes += written;
+        return written;
+    }
+
+    /**
+     * Sends whatever is left over as a final, shorter block. Nothing more
+     * should be written afterwards.
+     * 
+     * @throws IOException
+     */
+    void finish() throws IOException {
+        if (block.position() > 0) {
+            sendBlock();
+        }
+    }
+
+    /**
+     * Frees the compressor. Called once the channel is done with, whether or
+     * not everything was sent.
+     */
+    void end() {
+        deflater.end();
+    }
+
+    /**
+     * Sends the buffered block, compressed if it's worth it
+     * 
+     * @throws IOException
+     */
+    private void sendBlock() throws IOException {
+        int length = block.position();
+        int stored = -1;
+        if (skip > 0) {
+            skip--;
+        } else {
+            // anything that doesn't save an eighth isn't worth inflating
+            int limit = length - length / 8;
+            deflater.reset();
+            deflater.setInput(block.array(), 0, length);
+            deflater.finish();
+            int size = deflater.deflate(compressed, 0, limit);
+            if (deflater.finished() && size < limit) {
+                stored = size;
+                backoff = 0;
+            } else {
+                backoff = Math.min(Math.max(1, backoff * 2), MAX_SKIP);
+                skip = backoff;
+            }
+        }
+
+        header.clear();
+        header.put((stored < 0) ? RAW : DEFLATED);
+        header.putInt(length);
+        header.putInt((stored < 0) ? length : stored);
+        header.flip();
+        ByteBuffer data = (stored < 0) ? (ByteBuffer) block.flip() : ByteBuffer.wrap(compressed, 0, stored);
+        sentBytes += HEADER + data.remaining();
+        while (header.hasRemaining()) {
+            out.write(header);
+        }
+        while (data.hasRemaining()) {
+            out.write(data);
+        }
+        block.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return out.isOpen();
+    }
+
+    /**
+     * Sends anything left over and closes the channel underneath
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            end();
+            out.close();
+        }
+    }
+}
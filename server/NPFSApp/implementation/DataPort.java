@@ -0,0 +1,680 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The single port a server moves file data over. A server that wants data
+ * from us asks for a transfer over CORBA and gets back a token, then opens a
+ * stream for that token on its connection to our data port. Each pair of
+ * servers keeps one connection open in each direction, and any number of
+ * streams are carried over it at once as frames of
+ * 
+ * <pre>
+ * stream id | length | data
+ * </pre>
+ * 
+ * where a negative length opens, ends or abandons a stream, or gives it more
+ * credit, instead of carrying data. One selector thread does all of the
+ * reading and writing for every connection, and the transfers themselves run
+ * on a thread pool.
+ * 
+ * Each stream has its own window of credit, so a stream whose reader falls
+ * behind stops its own sender without holding up the others on the same
+ * connection, which is always being read.
+ * 
+ * @author nhydock
+ *
+ */
+class DataPort implements Runnable {
+
+    /**
+     * Opens a stream, followed by the token of the transfer to run on it
+     */
+    static final int OPEN = -1;
+
+    /**
+     * Nothing more is coming on a stream
+     */
+    static final int END = -2;
+
+    /**
+     * The sender has given up on a stream and won't read anything more
+     */
+    static final int ABORT = -3;
+
+    /**
+     * The receiver has read some of a stream, followed by how many more bytes
+     * it can be sent
+     */
+    static final int CREDIT = -4;
+
+    /**
+     * Size of a frame header, the stream id and length
+     */
+    static final int HEADER = 8;
+
+    /**
+     * Most data carried by a single frame
+     */
+    static final int MAX_FRAME = 64 * 1024;
+
+    /**
+     * Bytes a stream can be sent ahead of its reader, and a connection can
+     * have waiting to be sent before its senders are held up
+     */
+    static final int WINDOW = 1024 * 1024;
+
+    /**
+     * Milliseconds a token can go unused before it's forgotten
+     */
+    static final long TOKEN_TIMEOUT = 60 * 1000;
+
+    /**
+     * Work done for a remote server over a stream it opened
+     * 
+     * @author nhydock
+     *
+     */
+    interface Transfer {
+        /**
+         * Exchanges data with the remote server
+         * 
+         * @param stream
+         *            - stream to the remote server, closed once the transfer
+         *            returns
+         * @throws IOException
+         */
+        void run(DataStream stream) throws IOException;
+    }
+
+    /**
+     * A transfer waiting for its stream to be opened
+     */
+    private static class Pending {
+        final Transfer transfer;
+        final long created;
+
+        Pending(Transfer transfer) {
+            this.transfer = transfer;
+            this.created = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Threads the transfers are run on, shared by every server in the process
+     */
+    private static final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "data-transfer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Port we're listening on
+     */
+    final int port;
+
+    /**
+     * Selector for the listening socket and every connection
+     */
+    private final Selector selector;
+
+    /**
+     * Socket accepting connections from other servers
+     */
+    private final ServerSocketChannel listener;
+
+    /**
+     * Transfers handed out and not yet started, by token
+     */
+    private final ConcurrentHashMap<Integer, Pending> pending;
+
+    /**
+     * Source of transfer tokens
+     */
+    private final AtomicInteger tokens;
+
+    /**
+     * Our connections to other servers' data ports, by endpoint
+     */
+    private final ConcurrentHashMap<String, Connection> peers;
+
+    /**
+     * Changes to make to the selector, which only its own thread may do
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+
+    /**
+     * Opens the data port and starts serving it
+     * 
+     * @param port
+     *            - port to listen on, or 0 for any free port
+     * @throws IOException
+     *             if the port couldn't be opened
+     */
+    DataPort(int port) throws IOException {
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        this.port = listener.socket().getLocalPort();
+        this.pending = new ConcurrentHashMap<Integer, Pending>();
+        this.tokens = new AtomicInteger();
+        this.peers = new ConcurrentHashMap<String, Connection>();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+
+        Thread thread = new Thread(this, "data-port-" + this.port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Hands out a token for a transfer that runs once the remote server opens
+     * a stream for it
+     * 
+     * @param transfer
+     * @return the token
+     */
+    int register(Transfer transfer) {
+        long now = System.currentTimeMillis();
+        Iterator<Pending> stale = pending.values().iterator();
+        while (stale.hasNext()) {
+            if (now - stale.next().created > TOKEN_TIMEOUT) {
+                stale.remove();
+            }
+        }
+
+        // tokens only need to be unique among the pending transfers, so
+        // wrapping around is harmless
+        int token = tokens.incrementAndGet() & Integer.MAX_VALUE;
+        pending.put(token, new Pending(transfer));
+        return token;
+    }
+
+    /**
+     * Forgets a transfer that was never started
+     * 
+     * @param token
+     */
+    void cancel(int token) {
+        pending.remove(token);
+    }
+
+    /**
+     * Opens a stream for a transfer on another server
+     * 
+     * @param endpoint
+     *            - host:port of the server's data port
+     * @param token
+     *            - token the server handed out for the transfer
+     * @return the stream
+     * @throws IOException
+     *             if the server couldn't be reached
+     */
+    DataStream open(String endpoint, int token) throws IOException {
+        if (token < 0) {
+            throw new IOException(endpoint + " couldn't set up the transfer");
+        }
+        Connection connection = connect(endpoint);
+        DataStream stream = new DataStream(connection.ids.incrementAndGet(), connection);
+        connection.streams.put(stream.id, stream);
+        ByteBuffer request = ByteBuffer.allocate(4);
+        request.putInt(token);
+        request.flip();
+        connection.send(stream, OPEN, request);
+        return stream;
+    }
+
+    /**
+     * Gets our connection to another server's data port, connecting if there
+     * isn't one yet
+     * 
+     * @param endpoint
+     * @return the connection
+     * @throws IOException
+     */
+    private Connection connect(String endpoint) throws IOException {
+        Connection connection = peers.get(endpoint);
+        if (connection != null && !connection.closed) {
+            return connection;
+        }
+        synchronized (peers) {
+            connection = peers.get(endpoint);
+            if (connection != null && !connection.closed) {
+                return connection;
+            }
+            String host = endpoint.split(":")[0];
+            int port = Integer.parseInt(endpoint.split(":")[1]);
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+            channel.configureBlocking(false);
+            connection = new Connection(channel, endpoint);
+            peers.put(endpoint, connection);
+        }
+        final Connection registering = connection;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    registering.key = registering.channel.register(selector, SelectionKey.OP_READ, registering);
+                    registering.updateInterest();
+                } catch (IOException e) {
+                    registering.fail(e);
+                }
+            }
+        });
+        return connection;
+    }
+
+    /**
+     * Has the selector thread make a change and wakes it up to do it
+     * 
+     * @param task
+     */
+    private void post(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Serves the data port until the process exits
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    } catch (RuntimeException e) {
+                        // such as the key being cancelled under us, which
+                        // only costs this connection
+                        e.printStackTrace();
+                        connection.fail(new IOException(e));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // the selector thread carries every transfer on the port, so
+                // it keeps going whatever happens
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accepts a connection from another server
+     * 
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, null);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Starts the transfer a remote server asked for on a new stream
+     * 
+     * @param stream
+     * @param token
+     */
+    private void start(final DataStream stream, int token) {
+        final Pending request = pending.remove(token);
+        if (request == null) {
+            System.out.println("No transfer waiting for token " + token);
+            try {
+                stream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    request.transfer.run(stream);
+                    stream.shutdownOutput();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * A connection to or from another server's data port and the streams
+     * carried on it
+     * 
+     * @author nhydock
+     *
+     */
+    class Connection {
+
+        /**
+         * Socket to the other server
+         */
+        final SocketChannel channel;
+
+        /**
+         * Endpoint we connected to, or null if the other server connected to
+         * us
+         */
+        final String endpoint;
+
+        /**
+         * Streams open on the connection, by id
+         */
+        final Map<Integer, DataStream> streams;
+
+        /**
+         * Source of ids for the streams we open
+         */
+        final AtomicInteger ids;
+
+        /**
+         * Registration with the selector, set by the selector thread
+         */
+        SelectionKey key;
+
+        /**
+         * Frames read so far, including any partial frame at the end
+         */
+        private final ByteBuffer in;
+
+        /**
+         * Frames waiting to be sent
+         */
+        private final ArrayDeque<ByteBuffer> out;
+
+        /**
+         * Number of bytes waiting to be sent
+         */
+        private long pendingBytes;
+
+        /**
+         * True once the connection has failed
+         */
+        volatile boolean closed;
+
+        Connection(SocketChannel channel, String endpoint) {
+            this.channel = channel;
+            this.endpoint = endpoint;
+            this.streams = new ConcurrentHashMap<Integer, DataStream>();
+            this.ids = new AtomicInteger();
+            this.in = ByteBuffer.allocate(HEADER + MAX_FRAME);
+            this.out = new ArrayDeque<ByteBuffer>();
+        }
+
+        /**
+         * Sends a frame for a stream, waiting while the connection is too far
+         * behind on what it's already been given
+         * 
+         * @param stream
+         * @param length
+         *            - length of the data, or a negative length for a
+         *            control frame
+         * @param data
+         *            - data to send, if any
+         * @throws IOException
+         *             if the connection or stream has closed
+         */
+        void send(DataStream stream, int length, ByteBuffer data) throws IOException {
+            ByteBuffer frame = ByteBuffer.allocate(HEADER + (data == null ? 0 : data.remaining()));
+            frame.putInt(stream.id);
+            frame.putInt(length);
+            if (data != null) {
+                frame.put(data);
+            }
+            frame.flip();
+
+            synchronized (this) {
+                // control frames are never held up, so the selector thread
+                // can send them without blocking
+                while (length >= 0 && pendingBytes > WINDOW && !closed && !stream.remoteGone) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted waiting to send", e);
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection to data port closed");
+                }
+                if (length >= 0 && stream.remoteGone) {
+                    throw new IOException("Remote end abandoned the transfer");
+                }
+                if (out.isEmpty()) {
+                    channel.write(frame);
+                    if (!frame.hasRemaining()) {
+                        return;
+                    }
+                }
+                out.add(frame);
+                pendingBytes += frame.remaining();
+            }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    updateInterest();
+                }
+            });
+        }
+
+        /**
+         * Writes as many waiting frames as the socket will take. Called by
+         * the selector thread.
+         * 
+         * @throws IOException
+         */
+        synchronized void flush() throws IOException {
+            while (!out.isEmpty()) {
+                ByteBuffer frame = out.peek();
+                int written = channel.write(frame);
+                pendingBytes -= written;
+                if (frame.hasRemaining()) {
+                    break;
+                }
+                out.poll();
+            }
+            updateInterest();
+            notifyAll();
+        }
+
+        /**
+         * Reads whatever has arrived and hands out the complete frames.
+         * Called by the selector thread.
+         * 
+         * @throws IOException
+         */
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                throw new IOException("Connection closed by the other server");
+            }
+            in.flip();
+            while (in.remaining() >= HEADER) {
+                int id = in.getInt(in.position());
+                int length = in.getInt(in.position() + 4);
+                int body = (length >= 0) ? length : (length == OPEN || length == CREDIT ? 4 : 0);
+                if (body > MAX_FRAME) {
+                    throw new IOException("Frame of " + length + " bytes is too large");
+                }
+                if (in.remaining() < HEADER + body) {
+                    break;
+                }
+                in.position(in.position() + HEADER);
+                ByteBuffer data = in.slice();
+                data.limit(body);
+                in.position(in.position() + body);
+                try {
+                    dispatch(id, length, data);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    drop(id);
+                }
+            }
+            in.compact();
+        }
+
+        /**
+         * Abandons a stream whose frame couldn't be handled, leaving the
+         * rest of the connection alone
+         * 
+         * @param id
+         */
+        private void drop(int id) {
+            DataStream stream = streams.get(id);
+            if (stream == null) {
+                return;
+            }
+            System.out.println("Dropping stream " + id + " on " + channel);
+            // whoever is using the stream here finds it abandoned, and so
+            // does the other end
+            stream.deliverAbort();
+            streams.remove(id);
+            try {
+                send(stream, ABORT, null);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Hands a frame to its stream
+         * 
+         * @param id
+         * @param length
+         * @param data
+         */
+        private void dispatch(int id, int length, ByteBuffer data) {
+            if (length == OPEN) {
+                DataStream stream = new DataStream(id, this);
+                streams.put(id, stream);
+                start(stream, data.getInt());
+                return;
+            }
+            DataStream stream = streams.get(id);
+            if (stream == null) {
+                // frames still in flight for a stream that's been closed
+                return;
+            }
+            if (length == END) {
+                stream.deliverEnd();
+            } else if (length == ABORT) {
+                stream.deliverAbort();
+            } else if (length == CREDIT) {
+                stream.deliverCredit(data.getInt());
+            } else {
+                ByteBuffer copy = ByteBuffer.allocate(length);
+                copy.put(data);
+                copy.flip();
+                stream.deliver(copy);
+            }
+        }
+
+        /**
+         * Lets senders waiting on the connection check if their stream has
+         * been abandoned
+         */
+        synchronized void wakeWriters() {
+            notifyAll();
+        }
+
+        /**
+         * Sets what the selector watches the connection for. Called by the
+         * selector thread.
+         */
+        private void updateInterest() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = SelectionKey.OP_READ;
+            synchronized (this) {
+                if (!out.isEmpty()) {
+                    ops |= SelectionKey.OP_WRITE;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        /**
+         * Closes a broken connection and abandons every stream on it
+         * 
+         * @param cause
+         */
+        void fail(IOException cause) {
+            System.out.println("Data connection " + channel + " failed: " + cause);
+            synchronized (this) {
+                closed = true;
+                out.clear();
+                notifyAll();
+            }
+            if (endpoint != null) {
+                peers.remove(endpoint, this);
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (DataStream stream : streams.values()) {
+                stream.deliverAbort();
+            }
+        }
+    }
+}
@@ -0,0 +1,291 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * One transfer carried over a connection to another server's data port.
+ * Many streams share the same connection, each sending its data as frames
+ * tagged with its id. Data that arrives is queued until it's read. Each side
+ * may only send as much as the other has given it credit for, and credit is
+ * handed back as the data is read, so a reader that falls behind only holds
+ * up its own stream and never the connection.
+ * 
+ * @author nhydock
+ *
+ */
+class DataStream implements ByteChannel {
+
+    /**
+     * Queued in place of data when the remote end has finished sending
+     */
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    /**
+     * Queued in place of data when the remote end gave up on the stream
+     */
+    private static final ByteBuffer ABORT = ByteBuffer.allocate(0);
+
+    /**
+     * Id the stream's frames are tagged with
+     */
+    final int id;
+
+    /**
+     * Connection the stream is carried on
+     */
+    final DataPort.Connection connection;
+
+    /**
+     * Data that has arrived and not been read yet
+     */
+    private final ArrayDeque<ByteBuffer> incoming;
+
+    /**
+     * Bytes read since we last gave the remote end more credit
+     */
+    private int consumed;
+
+    /**
+     * Bytes we may still send before the remote end gives us more credit
+     */
+    private int credit;
+
+    /**
+     * True once everything the remote end sent has been read
+     */
+    private boolean inputDone;
+
+    /**
+     * True once we've said we're done sending
+     */
+    private boolean outputDone;
+
+    /**
+     * True once the remote end has stopped listening to us
+     */
+    volatile boolean remoteGone;
+
+    /**
+     * Time after which reads stop waiting for data, in milliseconds since the
+     * epoch
+     */
+    private long deadline = Long.MAX_VALUE;
+
+    /**
+     * Creates a stream on a connection
+     * 
+     * @param id
+     * @param connection
+     */
+    DataStream(int id, DataPort.Connection connection) {
+        this.id = id;
+        this.connection = connection;
+        this.incoming = new ArrayDeque<ByteBuffer>();
+        this.credit = DataPort.WINDOW;
+    }
+
+    /**
+     * Queues data that arrived for the stream. Called by the data port's
+     * selector thread.
+     * 
+     * @param data
+     */
+    synchronized void deliver(ByteBuffer data) {
+        if (inputDone) {
+            return;
+        }
+        incoming.add(data);
+        notifyAll();
+    }
+
+    /**
+     * Lets us send more, once the remote end has read some of what we sent.
+     * Called by the data port's selector thread.
+     * 
+     * @param bytes
+     */
+    synchronized void deliverCredit(int bytes) {
+        credit += bytes;
+        notifyAll();
+    }
+
+    /**
+     * Marks the end of what the remote end is sending
+     */
+    synchronized void deliverEnd() {
+        incoming.add(END);
+        notifyAll();
+    }
+
+    /**
+     * Marks the stream as abandoned by the remote end. Anything it sent
+     * before giving up can still be read.
+     */
+    void deliverAbort() {
+        synchronized (this) {
+            remoteGone = true;
+            incoming.add(ABORT);
+            notifyAll();
+        }
+        connection.wakeWriters();
+    }
+
+    /**
+     * Sets a time after which reading fails instead of waiting on a remote
+     * end that has stalled
+     * 
+     * @param deadline
+     *            - milliseconds since the epoch
+     */
+    synchronized void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ByteBuffer data;
+        int length;
+        int grant = 0;
+        synchronized (this) {
+            if (inputDone) {
+                return -1;
+            }
+            while (incoming.isEmpty()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    throw new IOException("Timed out waiting for data");
+                }
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for data", e);
+                }
+            }
+            data = incoming.peek();
+            if (data == END) {
+                incoming.poll();
+                inputDone = true;
+                return -1;
+            } else if (data == ABORT) {
+                throw new IOException("Remote end abandoned the transfer");
+            }
+
+            length = Math.min(data.remaining(), dst.remaining());
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            data.position(data.position() + length);
+            if (!data.hasRemaining()) {
+                incoming.poll();
+            }
+            // credit is handed back in batches rather than a frame per read
+            consumed += length;
+            if (consumed >= DataPort.WINDOW / 2) {
+                grant = consumed;
+                consumed = 0;
+            }
+        }
+        if (grant > 0) {
+            ByteBuffer update = ByteBuffer.allocate(4);
+            update.putInt(grant);
+            update.flip();
+            try {
+                connection.send(this, DataPort.CREDIT, update);
+            } catch (IOException e) {
+                // the connection is gone, which the next read will find out
+            }
+        }
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (outputDone) {
+            throw new IOException("Stream already closed for sending");
+        }
+        int written = 0;
+        while (src.hasRemaining()) {
+            ByteBuffer frame = src.duplicate();
+            frame.limit(frame.position() + take(Math.min(src.remaining(), DataPort.MAX_FRAME)));
+            connection.send(this, frame.remaining(), frame);
+            written += frame.limit() - src.position();
+            src.position(frame.limit());
+        }
+        return written;
+    }
+
+    /**
+     * Waits for credit to send with and takes as much as is wanted of it
+     * 
+     * @param wanted
+     *            - most bytes about to be sent
+     * @return number of bytes that may be sent
+     * @throws IOException
+     *             if the remote end or the connection goes away first
+     */
+    private synchronized int take(int wanted) throws IOException {
+        while (credit <= 0 && !remoteGone && !connection.closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting to send", e);
+            }
+        }
+        if (remoteGone) {
+            throw new IOException("Remote end abandoned the transfer");
+        } else if (connection.closed) {
+            throw new IOException("Connection to data port closed");
+        }
+        int granted = Math.min(wanted, credit);
+        credit -= granted;
+        return granted;
+    }
+
+    /**
+     * Tells the remote end nothing more is coming, leaving the stream open
+     * for reading
+     * 
+     * @throws IOException
+     */
+    void shutdownOutput() throws IOException {
+        if (!outputDone) {
+            outputDone = true;
+            connection.send(this, DataPort.END, null);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return connection.streams.containsKey(id);
+    }
+
+    /**
+     * Closes the stream. If the remote end hasn't finished sending, it's told
+     * to stop.
+     */
+    @Override
+    public void close() throws IOException {
+        boolean abandoned;
+        synchronized (this) {
+            abandoned = !inputDone;
+            inputDone = true;
+            incoming.clear();
+        }
+        connection.streams.remove(id);
+        try {
+            if (abandoned && !remoteGone) {
+                outputDone = true;
+                connection.send(this, DataPort.ABORT, null);
+            } else {
+                shutdownOutput();
+            }
+        } catch (IOException e) {
+            // the connection is already gone, so there's no one to tell
+        }
+    }
+}
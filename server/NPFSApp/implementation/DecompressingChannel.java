@@ -0,0 +1,168 @@
+package NPFSApp.implementation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Channel that reads back the blocks sent by a {@link CompressingChannel},
+ * inflating the ones that were compressed
+ * 
+ * @author nhydock
+ *
+ */
+class DecompressingChannel implements ReadableByteChannel {
+
+    /**
+     * Channel the blocks arrive on
+     */
+    final ReadableByteChannel in;
+
+    /**
+     * Decompressor, reused for every block
+     */
+    private final Inflater inflater;
+
+    /**
+     * Header of the next block
+     */
+    private final ByteBuffer header;
+
+    /**
+     * Compressed data of a block
+     */
+    private final ByteBuffer stored;
+
+    /**
+     * Data of the current block not read yet
+     */
+    private final ByteBuffer block;
+
+    /**
+     * True once the channel underneath has ended
+     */
+    private boolean done;
+
+    /**
+     * Creates a decompressing channel
+     * 
+     * @param in
+     *            - channel the blocks arrive on
+     */
+    DecompressingChannel(ReadableByteChannel in) {
+        this.in = in;
+        this.inflater = new Inflater();
+        this.header = ByteBuffer.allocate(CompressingChannel.HEADER);
+        this.stored = ByteBuffer.allocate(CompressingChannel.BLOCK_SIZE);
+        this.block = ByteBuffer.allocate(CompressingChannel.BLOCK_SIZE);
+        this.block.flip();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (!block.hasRemaining()) {
+            if (done || !nextBlock()) {
+                done = true;
+                return -1;
+            }
+        }
+        int length = Math.min(block.remaining(), dst.remaining());
+        ByteBuffer part = block.duplicate();
+        part.limit(part.position() + length);
+        dst.put(part);
+        block.position(part.limit());
+        return length;
+    }
+
+    /**
+     * Reads and unpacks the next block
+     * 
+     * @return false if the channel ended cleanly between blocks
+     * @throws IOException
+     *             if the channel ends partway through a block or a block
+     *             is corrupt
+     */
+    private boolean nextBlock() throws IOException {
+        header.clear();
+        if (!readFully(header, true)) {
+            return false;
+        }
+        header.flip();
+        byte type = header.get();
+        int length = header.getInt();
+        int size = header.getInt();
+        if (length < 0 || length > CompressingChannel.BLOCK_SIZE || size < 0 || size > length) {
+            throw new IOException("Bad compressed block header");
+        }
+
+        block.clear();
+        if (type == CompressingChannel.RAW) {
+            block.limit(length);
+            readFully(block, false);
+        } else if (type == CompressingChannel.DEFLATED) {
+            stored.clear();
+            stored.limit(size);
+            readFully(stored, false);
+            inflater.reset();
+            inflater.setInput(stored.array(), 0, size);
+            try {
+                if (inflater.inflate(block.array(), 0, length) != length || !inflater.finished()) {
+                    throw new IOException("Compressed block didn't inflate to " + length + " bytes");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed block", e);
+            }
+            block.position(length);
+        } else {
+            throw new IOException("Unknown block type " + type);
+        }
+        block.flip();
+        return true;
+    }
+
+    /**
+     * Fills a buffer from the channel underneath
+     * 
+     * @param buffer
+     * @param atBoundary
+     *            - true if the channel may cleanly end before anything is
+     *            read
+     * @return false if the channel ended at a boundary
+     * @throws IOException
+     *             if the channel ends partway through
+     */
+    private boolean readFully(ByteBuffer buffer, boolean atBoundary) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) < 0) {
+                if (atBoundary && buffer.position() == start) {
+                    return false;
+                }
+                throw new EOFException("Compressed stream cut off partway through a block");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    /**
+     * Frees the decompressor without closing the channel underneath. Called
+     * once the channel is done with, whether or not everything was read.
+     */
+    void end() {
+        inflater.end();
+    }
+
+    @Override
+    public void close() throws IOException {
+        end();
+        in.close();
+    }
+}
@@ -0,0 +1,325 @@
+package NPFSApp.implementation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import NPFSApp.blockSum;
+
+/**
+ * Rsync style delta transfer. The server with an old copy of a file sends a
+ * weak and a strong checksum of each of its blocks, and the server with the
+ * new copy answers with a stream of records that say which old blocks to
+ * reuse and which bytes are new, so only the parts of the file that changed
+ * cross the network.
+ * 
+ * Stream layout: the size of the new file, then records of a type byte
+ * followed by the index of an old block for COPY, or a length and that many
+ * bytes for LITERAL, ending with END and the MD5 of the whole new file so the
+ * receiver can tell if its old copy wasn't the one the delta was made from.
+ * 
+ * @author nhydock
+ *
+ */
+class DeltaSync {
+
+    /**
+     * Record types
+     */
+    static final byte END = 0, COPY = 1, LITERAL = 2;
+
+    /**
+     * Largest run of new bytes sent in a single record
+     */
+    static final int MAX_LITERAL = 256 * 1024;
+
+    /**
+     * Smallest and largest block sizes picked for a file
+     */
+    static final int MIN_BLOCK = 2048, MAX_BLOCK = 64 * 1024;
+
+    /**
+     * Size of the buffers between the stream and the socket
+     */
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    /**
+     * Picks a block size for a file, around the square root of its size so
+     * neither the checksum list nor the missed matches get too large
+     * 
+     * @param size
+     *            - size of the file in bytes
+     * @return block size in bytes
+     */
+    static int blockSize(long size) {
+        int root = (int) Math.sqrt(size);
+        // round up to a whole kilobyte
+        root = (root + 1023) & ~1023;
+        return Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, root));
+    }
+
+    /**
+     * Computes the checksums of every whole block of a file. A partial block
+     * at the end is left out and is always sent as new bytes.
+     * 
+     * @param store
+     * @param filename
+     * @param blockSize
+     * @return checksums of each block in order
+     * @throws IOException
+     */
+    static blockSum[] sums(ReadableStore store, String filename, int blockSize) throws IOException {
+        long blocks = store.size(filename) / blockSize;
+        blockSum[] sums = new blockSum[(int) blocks];
+        MessageDigest md5 = md5();
+        byte[] block = new byte[blockSize];
+        for (int i = 0; i < sums.length; i++) {
+            if (read(store, filename, (long) i * blockSize, block, 0, blockSize) < blockSize) {
+                throw new IOException(filename + " shrank while its checksums were being computed");
+            }
+            sums[i] = new blockSum(RollingChecksum.of(block, 0, blockSize), md5.digest(block));
+        }
+        return sums;
+    }
+
+    /**
+     * Writes the delta from the blocks described by a set of checksums to
+     * the current contents of a file
+     * 
+     * @param store
+     * @param filename
+     *            - file with the new contents
+     * @param blockSize
+     *            - block size the checksums were computed with
+     * @param sums
+     *            - checksums of the old copy's blocks
+     * @param target
+     *            - channel to write the delta to
+     * @return number of new bytes sent
+     * @throws IOException
+     */
+    static long send(ReadableStore store, String filename, int blockSize, blockSum[] sums, WritableByteChannel target)
+            throws IOException {
+        HashMap<Integer, List<Integer>> index = new HashMap<Integer, List<Integer>>();
+        for (int i = 0; i < sums.length; i++) {
+            List<Integer> blocks = index.get(sums[i].weak);
+            if (blocks == null) {
+                blocks = new ArrayList<Integer>(1);
+                index.put(sums[i].weak, blocks);
+            }
+            blocks.add(i);
+        }
+        MessageDigest md5 = md5();
+        MessageDigest whole = md5();
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(target),
+                STREAM_BUFFER));
+        long size = store.size(filename);
+        out.writeLong(size);
+
+        // buf holds the file from offset onward; everything from literal up
+        // to pos is new data that hasn't been sent yet, and the block being
+        // matched starts at pos
+        byte[] buf = new byte[MAX_LITERAL + 2 * blockSize];
+        long offset = 0;
+        int limit = read(store, filename, 0, buf, 0, buf.length);
+        int pos = 0, literal = 0;
+        long sent = 0;
+        RollingChecksum weak = null;
+        while (true) {
+            if (pos + blockSize > limit) {
+                if (offset + limit >= size) {
+                    break;
+                }
+                System.arraycopy(buf, literal, buf, 0, limit - literal);
+                offset += literal;
+                pos -= literal;
+                limit -= literal;
+                literal = 0;
+                int read = read(store, filename, offset + limit, buf, limit, buf.length - limit);
+                if (read <= 0) {
+                    break;
+                }
+                limit += read;
+                continue;
+            }
+
+            if (weak == null) {
+                weak = new RollingChecksum(buf, pos, blockSize);
+            }
+            int block = match(index, sums, md5, weak.value(), buf, pos, blockSize);
+            if (block >= 0) {
+                sent += literal(out, whole, buf, literal, pos - literal);
+                out.writeByte(COPY);
+                out.writeInt(block);
+                whole.update(buf, pos, blockSize);
+                pos += blockSize;
+                literal = pos;
+                weak = null;
+            } else {
+                if (pos - literal >= MAX_LITERAL) {
+                    sent += literal(out, whole, buf, literal, pos - literal);
+                    literal = pos;
+                }
+                if (pos + blockSize < limit) {
+                    weak.roll(buf[pos], buf[pos + blockSize]);
+                } else {
+                    weak = null;
+                }
+                pos++;
+            }
+        }
+        sent += literal(out, whole, buf, literal, limit - literal);
+        out.writeByte(END);
+        out.write(whole.digest());
+        out.flush();
+        return sent;
+    }
+
+    /**
+     * Rebuilds the new contents of a file from a delta and the old copy
+     * 
+     * @param store
+     * @param filename
+     *            - file holding the old copy
+     * @param blockSize
+     *            - block size the old copy's checksums were computed with
+     * @param source
+     *            - channel to read the delta from
+     * @param target
+     *            - file to write the new contents to
+     * @return size of the new contents
+     * @throws IOException
+     *             if the delta is cut off or doesn't rebuild the file it
+     *             was made from
+     */
+    static long receive(ReadableStore store, String filename, int blockSize, ReadableByteChannel source, Path target)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(source),
+                STREAM_BUFFER));
+        long size = in.readLong();
+        byte[] buf = new byte[Math.max(blockSize, MAX_LITERAL)];
+        MessageDigest whole = md5();
+        try (FileChannel output = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (true) {
+                byte type = in.readByte();
+                int length;
+                if (type == END) {
+                    byte[] expected = new byte[whole.getDigestLength()];
+                    in.readFully(expected);
+                    if (!MessageDigest.isEqual(expected, whole.digest())) {
+                        throw new IOException("Delta of " + filename + " was made from a different copy");
+                    }
+                    break;
+                } else if (type == COPY) {
+                    int block = in.readInt();
+                    length = read(store, filename, (long) block * blockSize, buf, 0, blockSize);
+                    if (length < blockSize) {
+                        throw new IOException("Block " + block + " of " + filename + " is missing");
+                    }
+                } else if (type == LITERAL) {
+                    length = in.readInt();
+                    if (length < 0 || length > buf.length) {
+                        throw new IOException("Bad literal length " + length + " in delta of " + filename);
+                    }
+                    in.readFully(buf, 0, length);
+                } else {
+                    throw new IOException("Bad record type " + type + " in delta of " + filename);
+                }
+                whole.update(buf, 0, length);
+                ByteBuffer data = ByteBuffer.wrap(buf, 0, length);
+                while (data.hasRemaining()) {
+                    output.write(data);
+                }
+            }
+            if (output.size() != size) {
+                throw new IOException("Delta of " + filename + " rebuilt " + output.size() + " of " + size
+                        + " bytes");
+            }
+            output.force(false);
+        }
+        return size;
+    }
+
+    /**
+     * Looks for an old block matching the block at a position
+     * 
+     * @return index of the old block, or -1 if none match
+     */
+    private static int match(HashMap<Integer, List<Integer>> index, blockSum[] sums, MessageDigest md5, int weak,
+            byte[] buf, int pos, int blockSize) {
+        List<Integer> candidates = index.get(weak);
+        if (candidates == null) {
+            return -1;
+        }
+        md5.update(buf, pos, blockSize);
+        byte[] strong = md5.digest();
+        for (int block : candidates) {
+            if (MessageDigest.isEqual(strong, sums[block].strong)) {
+                return block;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Writes a run of new bytes as a LITERAL record
+     * 
+     * @return number of bytes written
+     */
+    private static int literal(DataOutputStream out, MessageDigest whole, byte[] buf, int from, int length)
+            throws IOException {
+        if (length <= 0) {
+            return 0;
+        }
+        whole.update(buf, from, length);
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(buf, from, length);
+        return length;
+    }
+
+    /**
+     * Reads as many bytes as are available, up to a length, from a stored
+     * file
+     * 
+     * @return number of bytes read, less than length only at the end of the
+     *         file
+     */
+    static int read(ReadableStore store, String filename, long position, byte[] buf, int offset, int length)
+            throws IOException {
+        ByteBuffer dst = ByteBuffer.wrap(buf, offset, length);
+        while (dst.hasRemaining()) {
+            if (store.read(filename, position + dst.position() - offset, dst) < 0) {
+                break;
+            }
+        }
+        return dst.position() - offset;
+    }
+
+    /**
+     * Gets a strong checksum digest
+     */
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
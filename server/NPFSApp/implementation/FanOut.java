@@ -0,0 +1,146 @@
+package NPFSApp.implementation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import NPFSApp.FileServer;
+
+/**
+ * Makes the same call on a group of servers at once, so a round of calls
+ * takes as long as the slowest server instead of the sum of all of them.
+ * 
+ * @author nhydock
+ *
+ */
+class FanOut {
+
+    /**
+     * A call to make on a single server
+     * 
+     * @param <T>
+     *            - result of the call
+     */
+    interface PeerCall<T> {
+        T call(FileServer server);
+    }
+
+    /**
+     * Threads the calls are made on, shared by every server in the process
+     */
+    private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "peer-call");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Makes a call on every server in parallel and waits for the results
+     * 
+     * @param servers
+     *            - servers to call
+     * @param call
+     *            - call to make on each one
+     * @param timeout
+     *            - milliseconds to wait for all of the calls to finish
+     * @return the result from each server, in the same order as the servers.
+     *         Calls that failed or didn't finish in time give null.
+     */
+    static <T> List<T> call(Collection<FileServer> servers, final PeerCall<T> call, long timeout) {
+        ArrayList<Callable<T>> tasks = new ArrayList<Callable<T>>();
+        for (final FileServer server : servers) {
+            tasks.add(new Callable<T>() {
+                @Override
+                public T call() {
+                    return call.call(server);
+                }
+            });
+        }
+
+        ArrayList<T> results = new ArrayList<T>();
+        List<Future<T>> futures;
+        try {
+            futures = pool.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (int i = 0; i < tasks.size(); i++) {
+                results.add(null);
+            }
+            return results;
+        }
+
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (CancellationException e) {
+                System.out.println("Remote server did not respond in time");
+                results.add(null);
+            } catch (ExecutionException e) {
+                System.out.println("Remote server call failed: " + e.getCause());
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Makes a call on every server in parallel and waits for the results,
+     * leaving any call that runs past the timeout to finish in the background
+     * instead of interrupting it. For calls that write somewhere an interrupt
+     * would break for everyone else, and that notice on their own when to
+     * stop.
+     * 
+     * @param servers
+     *            - servers to call
+     * @param call
+     *            - call to make on each one
+     * @param timeout
+     *            - milliseconds to wait for all of the calls to finish
+     * @return the result from each server, in the same order as the servers.
+     *         Calls that failed or didn't finish in time give null.
+     */
+    static <T> List<T> callWithoutInterrupt(Collection<FileServer> servers, final PeerCall<T> call, long timeout) {
+        ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+        for (final FileServer server : servers) {
+            futures.add(pool.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return call.call(server);
+                }
+            }));
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        ArrayList<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            } catch (TimeoutException e) {
+                System.out.println("Remote server did not respond in time");
+                results.add(null);
+            } catch (ExecutionException e) {
+                System.out.println("Remote server call failed: " + e.getCause());
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                results.add(null);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,76 @@
+package NPFSApp.implementation;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Read/write locks for files, shared out over a fixed number of stripes so
+ * there's no lock to create or clean up per file. Reads of a file share its
+ * lock and anything replacing its contents or version holds it alone.
+ * Different files usually land on different stripes and don't wait on each
+ * other.
+ * 
+ * Locks are never held over calls to other servers, since they may be
+ * waiting on a lock of ours in turn.
+ * 
+ * @author nhydock
+ *
+ */
+class FileLocks {
+
+    /**
+     * Number of stripes when none is given
+     */
+    static final int DEFAULT_STRIPES = 64;
+
+    /**
+     * The locks files are spread over
+     */
+    private final ReentrantReadWriteLock[] stripes;
+
+    /**
+     * Creates a set of locks
+     * 
+     * @param stripes
+     *            - number of locks, rounded up to a power of two
+     */
+    FileLocks(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.stripes = new ReentrantReadWriteLock[size];
+        for (int i = 0; i < size; i++) {
+            this.stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Gets the lock held while reading a file
+     * 
+     * @param filename
+     * @return the file's read lock
+     */
+    Lock read(String filename) {
+        return stripe(filename).readLock();
+    }
+
+    /**
+     * Gets the lock held while changing a file
+     * 
+     * @param filename
+     * @return the file's write lock
+     */
+    Lock write(String filename) {
+        return stripe(filename).writeLock();
+    }
+
+    /**
+     * Picks the stripe a file's lock is on
+     * 
+     * @param filename
+     * @return the stripe
+     */
+    private ReentrantReadWriteLock stripe(String filename) {
+        int hash = filename.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[hash & (stripes.length - 1)];
+    }
+}
@@ -0,0 +1,53 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * How a server lays the files it distributes out on disk. Positions are
+ * always offsets into a file's contents as clients see them, whatever the
+ * layout underneath.
+ * 
+ * @author nhydock
+ *
+ */
+public interface FileStore extends ReadableStore {
+
+    /**
+     * Replaces the range [start, end) of a file with new data, which may be
+     * longer or shorter than the range
+     * 
+     * @param filename
+     * @param start
+     *            - start of the range being replaced
+     * @param end
+     *            - end of the range being replaced
+     * @param data
+     *            - channel supplying the new data
+     * @param length
+     *            - number of bytes to take from the channel
+     * @throws IOException
+     */
+    void write(String filename, long start, long end, ReadableByteChannel data, long length)
+            throws IOException;
+
+    /**
+     * Forgets anything kept about a file because it is about to be replaced
+     * or removed outside of the store
+     * 
+     * @param filename
+     */
+    void invalidate(String filename);
+
+    /**
+     * Moves a complete new copy of a file, written outside of the store,
+     * into place. Called after the file has been invalidated.
+     * 
+     * @param filename
+     * @param replacement
+     *            - the new copy, which is gone afterwards
+     * @throws IOException
+     */
+    void replace(String filename, Path replacement) throws IOException;
+}
@@ -0,0 +1,322 @@
+package NPFSApp.implementation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Default storage layout, each file is kept on disk exactly as clients see it
+ * 
+ * Large files are read through a memory mapping kept until the file changes,
+ * so random reads into them don't open and seek the file each time.
+ * 
+ * @author nhydock
+ *
+ */
+public class FlatFileStore implements FileStore {
+
+    /**
+     * Largest buffer used when moving new data into a file
+     */
+    private static final int MAX_BUFFER = 1024 * 1024;
+
+    /**
+     * Smallest file that is memory mapped for reading
+     */
+    static final long MAP_THRESHOLD = 64 * 1024 * 1024;
+
+    /**
+     * Most bytes mapped by a single buffer
+     */
+    private static final long SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    /**
+     * The directory the files are kept in
+     */
+    final File directory;
+
+    /**
+     * Mappings of the large files read so far
+     */
+    private final ConcurrentHashMap<String, MappedByteBuffer[]> mappings;
+
+    /**
+     * Creates a flat store over a directory
+     * 
+     * @param directory
+     */
+    public FlatFileStore(File directory) {
+        this.directory = directory;
+        this.mappings = new ConcurrentHashMap<String, MappedByteBuffer[]>();
+    }
+
+    @Override
+    public long size(String filename) {
+        return new File(directory, filename).length();
+    }
+
+    @Override
+    public int read(String filename, long position, ByteBuffer dst) throws IOException {
+        MappedByteBuffer[] mapping = map(filename);
+        if (mapping != null) {
+            return read(mapping, position, dst);
+        }
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            int start = dst.position();
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position() - start) < 0) {
+                    break;
+                }
+            }
+            int read = dst.position() - start;
+            return (read == 0 && position >= channel.size()) ? -1 : read;
+        }
+    }
+
+    @Override
+    public long transferTo(String filename, long position, long count, WritableByteChannel target)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            return transfer(channel, position, count, target);
+        }
+    }
+
+    /**
+     * Overwrites the range in place when the new data is the same length,
+     * otherwise rebuilds the file around the new data
+     */
+    @Override
+    public void write(String filename, long start, long end, ReadableByteChannel data, long length)
+            throws IOException {
+        File oldFile = new File(directory, filename);
+        Path old = oldFile.toPath();
+        mappings.remove(filename);
+
+        // the range keeps its length, so nothing after it has to move
+        if (length == end - start && end <= oldFile.length()) {
+            overwrite(old, start, data, length);
+            return;
+        }
+
+        Path out = (new File(directory, "~" + filename)).toPath();
+
+        try (FileChannel oldChannel = FileChannel.open(old, StandardOpenOption.READ);
+                FileChannel outChannel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            // copy the first chunk from the old file to temp
+            transfer(oldChannel, 0, start, outChannel);
+
+            // insert new data into the file
+            append(data, length, outChannel);
+
+            // skip over read out chunk and write the tail of the file out
+            transfer(oldChannel, end, oldChannel.size() - end, outChannel);
+        }
+
+        // rename the rebuilt file into place instead of copying it back over
+        // the original a second time
+        Files.move(out, old, StandardCopyOption.REPLACE_EXISTING);
+        mappings.remove(filename);
+    }
+
+    /**
+     * Drops the file's mapping, if it has one
+     */
+    @Override
+    public void invalidate(String filename) {
+        mappings.remove(filename);
+    }
+
+    /**
+     * Moves the new copy over the file
+     */
+    @Override
+    public void replace(String filename, Path replacement) throws IOException {
+        mappings.remove(filename);
+        Files.move(replacement, path(filename), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Gets the mapping of a large file, mapping it if it hasn't been yet or
+     * has changed size since
+     * 
+     * @param filename
+     * @return the file's mapping split into segments, or null if the file is
+     *         too small to be worth mapping
+     * @throws IOException
+     */
+    private MappedByteBuffer[] map(String filename) throws IOException {
+        long size = size(filename);
+        if (size < MAP_THRESHOLD) {
+            return null;
+        }
+        MappedByteBuffer[] mapping = mappings.get(filename);
+        if (mapping != null && length(mapping) == size) {
+            return mapping;
+        }
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            size = channel.size();
+            mapping = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < mapping.length; i++) {
+                long start = i * SEGMENT_SIZE;
+                mapping[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+        }
+        mappings.put(filename, mapping);
+        return mapping;
+    }
+
+    /**
+     * Reads from a mapped file
+     * 
+     * @param mapping
+     * @param position
+     * @param dst
+     * @return number of bytes read, or -1 if the position is past the end
+     */
+    private static int read(MappedByteBuffer[] mapping, long position, ByteBuffer dst) {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            int segment = (int) (position / SEGMENT_SIZE);
+            if (segment >= mapping.length) {
+                break;
+            }
+            // each reader gets its own view, as the mapping is shared
+            ByteBuffer src = mapping[segment].duplicate();
+            int offset = (int) (position % SEGMENT_SIZE);
+            if (offset >= src.limit()) {
+                break;
+            }
+            src.position(offset);
+            src.limit(Math.min(src.limit(), offset + dst.remaining()));
+            position += src.remaining();
+            dst.put(src);
+        }
+        int read = dst.position() - start;
+        return (read == 0 && dst.hasRemaining()) ? -1 : read;
+    }
+
+    /**
+     * Gets the number of bytes a mapping covers
+     * 
+     * @param mapping
+     * @return size of the file when it was mapped
+     */
+    private static long length(MappedByteBuffer[] mapping) {
+        long length = 0;
+        for (MappedByteBuffer segment : mapping) {
+            length += segment.capacity();
+        }
+        return length;
+    }
+
+    /**
+     * Resolves a file name within the store's directory
+     * 
+     * @param filename
+     * @return path to the file
+     */
+    Path path(String filename) {
+        return new File(directory, filename).toPath();
+    }
+
+    /**
+     * Writes new data directly over a range of a file, then syncs it once to
+     * disk
+     * 
+     * @param file
+     *            - file to write into
+     * @param position
+     *            - where the range starts
+     * @param data
+     *            - channel supplying the new data
+     * @param length
+     *            - number of bytes to take from the channel
+     * @throws IOException
+     */
+    static void overwrite(Path file, long position, ReadableByteChannel data, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_BUFFER, Math.max(length, 1)));
+            long end = position + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                if (data.read(buffer) < 0) {
+                    throw new EOFException("Missing " + (end - position) + " bytes of new data for " + file);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+            channel.force(false);
+        }
+    }
+
+    /**
+     * Appends data from a channel to a file at its current position
+     * 
+     * @param data
+     *            - channel supplying the data
+     * @param length
+     *            - number of bytes to take from the channel
+     * @param out
+     *            - file to append to
+     * @throws IOException
+     */
+    static void append(ReadableByteChannel data, long length, FileChannel out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(MAX_BUFFER, Math.max(length, 1)));
+        long remaining = length;
+        while (remaining > 0) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), remaining));
+            int read = data.read(buffer);
+            if (read < 0) {
+                throw new EOFException("Missing " + remaining + " bytes of new data");
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Copies a section of a file to a channel without pulling it through the
+     * heap
+     * 
+     * @param src
+     *            - file to copy from
+     * @param position
+     *            - where in the source to start
+     * @param count
+     *            - number of bytes to copy
+     * @param dst
+     *            - channel to write to, at its current position
+     * @return number of bytes copied
+     * @throws IOException
+     */
+    static long transfer(FileChannel src, long position, long count, WritableByteChannel dst) throws IOException {
+        long done = 0;
+        while (done < count) {
+            long sent = src.transferTo(position + done, Math.min(LocalFileServer.TRANSFER_WINDOW, count - done), dst);
+            if (sent <= 0) {
+                break;
+            }
+            done += sent;
+        }
+        return done;
+    }
+}
@@ -0,0 +1,160 @@
+package NPFSApp.implementation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import NPFSApp.FileListener;
+
+/**
+ * Read leases other servers and clients hold on our copies of files. A
+ * holder can trust its copy of a file until its lease runs out or we call
+ * it back to say the file has changed, so it doesn't have to keep asking.
+ * Callbacks are made on threads of their own, as revoking happens while the
+ * file is locked and a holder that's gone away can take a while to fail.
+ * 
+ * @author nhydock
+ *
+ */
+class LeaseTable {
+
+    /**
+     * Milliseconds a lease lasts
+     */
+    static final long LEASE_TIME = 30 * 1000;
+
+    /**
+     * Threads the callbacks are made on, shared by every table in the process
+     */
+    private static final ExecutorService callbacks = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "lease-callback");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * When each holder's lease on each file runs out
+     */
+    private final ConcurrentHashMap<String, ConcurrentHashMap<FileListener, Long>> leases;
+
+    /**
+     * Creates an empty table
+     */
+    LeaseTable() {
+        this.leases = new ConcurrentHashMap<String, ConcurrentHashMap<FileListener, Long>>();
+    }
+
+    /**
+     * Grants or renews a lease on a file
+     * 
+     * @param filename
+     * @param holder
+     *            - who to call back if the file changes
+     * @return milliseconds the lease lasts
+     */
+    long grant(String filename, FileListener holder) {
+        ConcurrentHashMap<FileListener, Long> holders = leases.get(filename);
+        if (holders == null) {
+            ConcurrentHashMap<FileListener, Long> created = new ConcurrentHashMap<FileListener, Long>();
+            holders = leases.putIfAbsent(filename, created);
+            if (holders == null) {
+                holders = created;
+            }
+        }
+        live(holders);
+        holders.put(holder, System.currentTimeMillis() + LEASE_TIME);
+        return LEASE_TIME;
+    }
+
+    /**
+     * Ends a lease early
+     * 
+     * @param filename
+     * @param holder
+     */
+    void release(String filename, FileListener holder) {
+        Map<FileListener, Long> holders = leases.get(filename);
+        if (holders != null) {
+            holders.remove(holder);
+        }
+    }
+
+    /**
+     * Gets who holds a lease on a file that hasn't run out
+     * 
+     * @param filename
+     * @return the holders
+     */
+    List<FileListener> holders(String filename) {
+        Map<FileListener, Long> holders = leases.get(filename);
+        if (holders == null) {
+            return new ArrayList<FileListener>();
+        }
+        return live(holders);
+    }
+
+    /**
+     * Ends every lease on a file and calls back the holders whose leases
+     * hadn't run out yet, without waiting for them to answer
+     * 
+     * @param filename
+     * @param version
+     *            - the file's new version, or -1 if it was removed
+     * @param origin
+     *            - holder that made the change and already has the new
+     *            version, whose lease is kept, or null
+     */
+    void revoke(final String filename, final int version, FileListener origin) {
+        Map<FileListener, Long> holders = leases.get(filename);
+        if (holders == null) {
+            return;
+        }
+        for (final FileListener holder : live(holders)) {
+            if (holder.equals(origin)) {
+                continue;
+            }
+            // leases are ended one at a time, so one granted in the
+            // meantime is kept
+            holders.remove(holder);
+            callbacks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        holder.invalidate(filename, version);
+                    } catch (org.omg.CORBA.SystemException e) {
+                        System.out.println("Unable to call back a lease holder on " + filename + ": " + e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops the leases that have run out
+     * 
+     * @param holders
+     * @return the holders whose leases haven't run out
+     */
+    private static List<FileListener> live(Map<FileListener, Long> holders) {
+        long now = System.currentTimeMillis();
+        List<FileListener> live = new ArrayList<FileListener>();
+        Iterator<Map.Entry<FileListener, Long>> entries = holders.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<FileListener, Long> entry = entries.next();
+            if (entry.getValue() < now) {
+                entries.remove();
+            } else {
+                live.add(entry.getKey());
+            }
+        }
+        return live;
+    }
+}
@@ -1,27 +1,31 @@
 package NPFSApp.implementation;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 
 import org.omg.CORBA.ORB;
 import org.omg.CosNaming.NamingContextExt;
@@ -29,12 +33,18 @@ import org.omg.CosNaming.NamingContextExtHelper;
 import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAHelper;
 
-import util.HideHidden;
-import util.OpenFilter;
+import util.DirectoryIndex;
+import util.LatencyTracker;
 import util.Versioning;
+import NPFSApp.FileListener;
 import NPFSApp.FileServer;
 import NPFSApp.FileServerHelper;
 import NPFSApp.FileServerPOA;
+import NPFSApp.blockSum;
+import NPFSApp.chainLink;
+import NPFSApp.catalogEntry;
+import NPFSApp.fileInfo;
+import NPFSApp.lease;
 
 /**
  * Local file server class that runs on our system
@@ -106,6 +116,22 @@ public class LocalFileServer extends FileServerPOA {
          */
         public long len;
 
+        /**
+         * Offset into the range of the next chunk handed out by readChunk
+         */
+        long cursor;
+
+        /**
+         * Temp file holding data sent with writeChunk until it is committed
+         */
+        Path staged;
+
+        /**
+         * True once a chunk failed to be staged, leaving the staged data
+         * incomplete
+         */
+        boolean stagingFailed;
+
         /**
          * Create an open file record
          * 
@@ -127,43 +153,103 @@ public class LocalFileServer extends FileServerPOA {
         }
 
         /**
-         * Overwrites and extends data if more has been written than read out
+         * Reads the next chunk of the open range as it was at the version it
+         * was opened at, advancing the cursor. Saves to other parts of the
+         * file since then are read past by moving the range along with them.
          * 
-         * @param data
+         * @param maxLength
+         *            - most bytes to return
+         * @return the chunk, empty once the whole range has been read
+         * @throws IOException
+         *             if the range has been changed since it was opened
          */
-        public void write(byte[] data) {
-            File oldFile = new File(filename);
-            Path old = oldFile.toPath();
-            Path out = (new File("~" + filename)).toPath();
-
-            try (InputStream oldStream = Files.newInputStream(old, StandardOpenOption.READ);
-                    OutputStream outStream = Files.newOutputStream(out, StandardOpenOption.CREATE)) {
-
-                // read the first chunk from the old file and write it to temp
-                byte[] head = new byte[(int) start];
-
-                oldStream.read(head);
-                outStream.write(head);
-
-                // insert new data into the file
-                outStream.write(data);
-
-                // skip over read out chunk
-                oldStream.skip(len);
-
-                // write the tail of the file out
-                head = new byte[(int) (oldFile.length() - end)];
-                while (oldStream.read(head) != -1) {
-                    outStream.write(head);
+        byte[] readChunk(int maxLength) throws IOException {
+            int size = (int) Math.min(Math.min(maxLength, MAX_CHUNK), len - cursor);
+            if (size <= 0) {
+                return new byte[0];
+            }
+            ByteBuffer chunk = ByteBuffer.allocate(size);
+            Lock lock = locks.read(filename);
+            lock.lock();
+            try {
+                int current = getVersion(filename);
+                long[] range = ledger.locate(filename, version, current, start, end);
+                if (range == null) {
+                    throw new IOException("Range of " + filename + " opened at version " + version
+                            + " has changed since");
+                }
+                while (chunk.hasRemaining()) {
+                    if (cache.read(store, filename, current, range[0] + cursor + chunk.position(), chunk) < 0) {
+                        break;
+                    }
                 }
+            } finally {
+                lock.unlock();
+            }
+            cursor += chunk.position();
+            return Arrays.copyOf(chunk.array(), chunk.position());
+        }
 
+        /**
+         * Appends a chunk of replacement data to this session's staging
+         * file. Once a chunk fails, the rest are refused until the staged
+         * data is discarded.
+         * 
+         * @param data
+         * @throws IOException
+         */
+        void writeChunk(byte[] data) throws IOException {
+            if (stagingFailed) {
+                throw new IOException("An earlier chunk for " + filename + " couldn't be staged");
+            }
+            try {
+                if (staged == null) {
+                    staged = Files.createTempFile(myDirectory.toPath(), ".~" + filename, ".staged");
+                }
+                try (FileChannel channel = FileChannel.open(staged, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(data);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                stagingFailed = true;
+                throw e;
             }
+        }
 
+        /**
+         * Removes any staged data without saving it
+         */
+        void discardStaged() {
+            if (staged != null) {
+                staged.toFile().delete();
+                staged = null;
+            }
+            stagingFailed = false;
+        }
+
+        /**
+         * Overwrites and extends data if more has been written than read out
+         * 
+         * @param data
+         */
+        public void write(byte[] data) {
+            write(Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+        }
+
+        /**
+         * Overwrites and extends data if more has been written than read out
+         * 
+         * @param data
+         *            - channel supplying the replacement for the open range
+         * @param length
+         *            - number of bytes to take from the channel
+         */
+        public void write(ReadableByteChannel data, long length) {
             try {
-                Files.copy(out, old, StandardCopyOption.REPLACE_EXISTING);
-                out.toFile().delete();
+                store.write(filename, start, end, data, length);
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -171,24 +257,68 @@ public class LocalFileServer extends FileServerPOA {
     }
 
     /**
-     * Our id distributor for the session connections
+     * A lease we hold on another server's copy of a file
+     * 
+     * @author nhydock
+     *
+     */
+    private static class HeldLease {
+        /**
+         * What the server said about its copy, kept current as we push it
+         * new versions
+         */
+        final fileInfo info;
+
+        /**
+         * When the lease runs out
+         */
+        final long expires;
+
+        HeldLease(fileInfo info, long expires) {
+            this.info = info;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Digest of one version of one of our files
      */
-    private static int SessionCounter = 0;
+    private static class Digest {
+        final int version;
+        final String value;
+
+        Digest(int version, String value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
 
     /**
      * list of all servers in the same network servers are sorted by closeness
      */
-    ArrayList<FileServer> servers;
+    CopyOnWriteArrayList<FileServer> servers;
 
     /**
-     * list of open sockets used for transferring files;
+     * Port file data is moved between servers over
+     */
+    DataPort data;
+    /**
+     * Largest number of bytes handed to a single transferTo/transferFrom call
+     * when streaming a file between servers
      */
-    HashMap<Integer, ServerSocket> openSockets;
+    static final long TRANSFER_WINDOW = 8 * 1024 * 1024;
     /**
-     * next open socket used for listing for when servers want to transfer files
-     * to each other
+     * Largest chunk handed out by a single readChunk call
      */
-    private static int AVAILABLE_SOCKET = 15123;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    /**
+     * Milliseconds to wait on a round of metadata calls to other servers
+     */
+    static final long PEER_TIMEOUT = 5000;
+    /**
+     * Milliseconds to wait on other servers copying a file
+     */
+    static final long COPY_TIMEOUT = 10 * 60 * 1000;
     /**
      * Set of connected ips for servers
      */
@@ -198,10 +328,47 @@ public class LocalFileServer extends FileServerPOA {
      * The directory the server is distributing files out of
      */
     File myDirectory;
+    /**
+     * Names of the files in our directory, kept current as files come and go
+     */
+    DirectoryIndex directoryIndex;
     /**
      * Our file version database
      */
     Versioning versionDB;
+    /**
+     * How the served files are laid out on disk
+     */
+    FileStore store;
+    /**
+     * Recently read blocks of our files
+     */
+    BlockCache cache;
+    /**
+     * True to have file data sent to us compressed and to compress what we
+     * push
+     */
+    boolean compress;
+    /**
+     * Which servers in the network hold which files
+     */
+    Catalog catalog;
+    /**
+     * Leases other servers and clients hold on our files
+     */
+    LeaseTable leases;
+    /**
+     * Leases we hold on other servers' copies of files
+     */
+    ConcurrentHashMap<String, ConcurrentHashMap<FileServer, HeldLease>> held;
+    /**
+     * Connected servers by address
+     */
+    ConcurrentHashMap<String, FileServer> addresses;
+    /**
+     * How far away each connected server is
+     */
+    LatencyTracker latencies;
 
     /**
      * IP of this server
@@ -209,29 +376,94 @@ public class LocalFileServer extends FileServerPOA {
     String ip;
 
     /**
-     * Mapping of files open per connection. Only one file per connection is
-     * allowed open at a time
+     * Ranges replaced by recent saves to each file
      */
-    HashMap<Integer, OpenFile> openFiles;
+    RangeLedger ledger;
+    /**
+     * Held while reading or changing each file
+     */
+    FileLocks locks;
+    /**
+     * Last digest worked out for each file
+     */
+    ConcurrentHashMap<String, Digest> digests;
+    /**
+     * Files open on each session and handle
+     */
+    SessionManager<OpenFile> sessions;
 
     /**
      * Creates a new LocalFileServer instance on a port
      * 
      * @param port
      */
-    public LocalFileServer(int port) {
+    public LocalFileServer(int port) throws IOException {
+        this(port, 0, new FlatFileStore(new File(".")), new BlockCache(BlockCache.DEFAULT_CAPACITY), false);
+    }
+
+    /**
+     * Creates a new LocalFileServer instance on a port, keeping its files in
+     * a specific storage layout
+     * 
+     * @param port
+     * @param dataPort
+     *            - port to move file data over, or 0 for any free port
+     * @param store
+     *            - storage layout for the served directory
+     * @param cache
+     *            - cache for blocks read by sessions
+     * @param compress
+     *            - true to ask for files to be sent to us compressed, and to
+     *            compress the changes we push
+     * @throws IOException
+     *             if the data port couldn't be opened
+     */
+    public LocalFileServer(int port, int dataPort, FileStore store, BlockCache cache, boolean compress)
+            throws IOException {
         myDirectory = new File(".");
-        versionDB = new Versioning(new File(".versions"), myDirectory);
-        servers = new ArrayList<FileServer>();
-        openSockets = new HashMap<Integer, ServerSocket>();
-        connectedAddresses = new HashSet<String>();
+        this.store = store;
+        this.cache = cache;
+        this.compress = compress;
+        directoryIndex = new DirectoryIndex(myDirectory);
+        versionDB = new Versioning(new File(".versions"), directoryIndex);
+        servers = new CopyOnWriteArrayList<FileServer>();
+        latencies = new LatencyTracker();
+        leases = new LeaseTable();
+        held = new ConcurrentHashMap<String, ConcurrentHashMap<FileServer, HeldLease>>();
+        addresses = new ConcurrentHashMap<String, FileServer>();
+        data = new DataPort(dataPort);
+        connectedAddresses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
         try {
             ip = InetAddress.getLocalHost().getHostName() + ":" + port;
         } catch (UnknownHostException e) {
             ip = "localhost:1050";
         }
 
-        openFiles = new HashMap<Integer, OpenFile>();
+        catalog = new Catalog(ip, servers);
+        for (String filename : directoryIndex.names()) {
+            catalog.publish(filename, versionDB.getVersion(filename));
+        }
+        directoryIndex.addListener(new DirectoryIndex.Listener() {
+            @Override
+            public void fileAdded(String filename) {
+                catalog.publish(filename, versionDB.getVersion(filename));
+            }
+
+            @Override
+            public void fileRemoved(String filename) {
+                catalog.publish(filename, -1);
+            }
+        });
+
+        ledger = new RangeLedger();
+        locks = new FileLocks(FileLocks.DEFAULT_STRIPES);
+        digests = new ConcurrentHashMap<String, Digest>();
+        sessions = new SessionManager<OpenFile>(SessionManager.DEFAULT_TTL, new SessionManager.Listener<OpenFile>() {
+            @Override
+            public void closed(OpenFile file) {
+                file.discardStaged();
+            }
+        });
     }
 
     /**
@@ -239,13 +471,7 @@ public class LocalFileServer extends FileServerPOA {
      */
     @Override
     public String[] myFiles() {
-        File[] files = myDirectory.listFiles(HideHidden.instance);
-        String[] names = new String[files.length];
-        for (int i = 0; i < files.length; i++) {
-            File f = files[i];
-            names[i] = f.getName();
-        }
-        return names;
+        return directoryIndex.names();
     }
 
     /**
@@ -255,7 +481,7 @@ public class LocalFileServer extends FileServerPOA {
      * @return -1 if the file doesn't exist or a version number if it does
      */
     public boolean hasFile(String filename) {
-        return myDirectory.listFiles(new OpenFilter(filename)).length > 0;
+        return directoryIndex.contains(filename);
     }
 
     @Override
@@ -281,8 +507,16 @@ public class LocalFileServer extends FileServerPOA {
      */
     @Override
     public void addServer(FileServer server) {
+        String address = server.getIpAddress();
+        // servers can be added from several calls at once, only the first
+        // connects
+        if (!connectedAddresses.add(address)) {
+            return;
+        }
         servers.add(server);
-        connectedAddresses.add(server.getIpAddress());
+        addresses.put(address, server);
+        latencies.track(server);
+        catalog.pull(server);
         System.out.println("Connected to remote server: " + server.getIpAddress());
         System.out.println("Remote server is also connected to ");
         boolean addMe = true;
@@ -301,58 +535,71 @@ public class LocalFileServer extends FileServerPOA {
             }
         }
         System.out.println();
-        // Collections.sort(servers, new PingComparator());
         if (addMe) {
             server.addServer(_this());
         }
     }
 
     /**
-     * Get a list of all files across all connected servers
+     * Get a list of all files across all connected servers. Answered from the
+     * catalog, so no other server is contacted.
      */
     @Override
     public String[] getAllFiles() {
-        // file, ip
-        HashMap<String, String> allFiles = new HashMap<String, String>();
-        for (FileServer s : servers) {
-            for (String file : s.myFiles()) {
-                allFiles.put(file, s.getIpAddress());
-            }
-        }
-        for (String file : myFiles()) {
-            allFiles.put(file, getIpAddress());
-        }
-        String[] fileList = new String[allFiles.size()];
-        Iterator<String> files = allFiles.keySet().iterator();
-        for (int i = 0; files.hasNext(); i++) {
-            String file = files.next();
-            String host = allFiles.get(file);
-            fileList[i] = host + " " + file;
-        }
+        return catalog.listing();
+    }
 
-        return fileList;
+    /**
+     * Gets the catalog entries for the files on this server
+     */
+    @Override
+    public catalogEntry[] getCatalog() {
+        return catalog.local();
+    }
+
+    /**
+     * Applies catalog changes pushed by another server
+     */
+    @Override
+    public void catalogDelta(String host, long batch, catalogEntry[] delta) {
+        catalog.apply(host, batch, delta);
     }
 
     /**
      * Copies a file from a remote server to this local instance. Always copies
-     * from whichever server has the newest version and is closest.
+     * from whichever server has the newest version and is closest. If we
+     * already have an older copy, only the blocks that changed are pulled.
      * 
      * @param filename
      * @return true if the file was found and copied. false if the file doesn't
      *         exist anywhere
      */
-    private boolean copyFile(String filename) {
+    private boolean copyFile(final String filename) {
         try {
+            List<FileServer> peers = peers();
+            List<fileInfo> infos = query(peers, filename);
             FileServer newest = null;
+            fileInfo newestInfo = null;
             int version = -1;
-            for (int i = 0; i < servers.size(); i++) {
-                FileServer remote = servers.get(i);
-                if (remote.hasFile(filename)) {
-                    int v = remote.getVersion(filename);
-                    if (v > version) {
-                        version = v;
-                        newest = remote;
-                    }
+            ArrayList<FileServer> sources = new ArrayList<FileServer>();
+            HashMap<FileServer, String> endpoints = new HashMap<FileServer, String>();
+            for (int i = 0; i < peers.size(); i++) {
+                fileInfo info = infos.get(i);
+                if (info == null || !info.present || info.version < version) {
+                    continue;
+                }
+                FileServer server = peers.get(i);
+                if (info.version > version) {
+                    sources.clear();
+                }
+                sources.add(server);
+                endpoints.put(server, info.dataEndpoint);
+                // of the servers with the newest version, take the closest
+                if (newest == null || info.version > version
+                        || latencies.latency(server) < latencies.latency(newest)) {
+                    version = info.version;
+                    newest = server;
+                    newestInfo = info;
                 }
             }
             if (version == -1) {
@@ -360,34 +607,25 @@ public class LocalFileServer extends FileServerPOA {
                 return false;
             }
 
-            System.out.println("copying file " + filename + " at version " + version);
-            File file = new File(filename);
-            file.createNewFile();
-
-            int port = newest.openSocketFile(filename);
-            // copy file over port
-
-            // open the socket
-            try (Socket socket = new Socket(newest.getIpAddress().split(":")[0], port);
-                    InputStream input = socket.getInputStream();
-                    OutputStream output = new FileOutputStream(file);) {
-                // read the file size
-                byte[] data = new byte[Long.SIZE];
-                input.read(data, 0, data.length);
-                ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE);
-                buffer.put(data);
-                buffer.flip();// need flip
-                int filesize = (int) buffer.getLong();
-                System.out.println("filesize of " + filename + " is " + filesize + " bytes");
-
-                data = new byte[filesize];
-                input.read(data, 0, data.length);
-                output.write(data);
-                output.flush();
+            boolean installed;
+            if (hasFile(filename)) {
+                if (version <= getVersion(filename)) {
+                    return true;
+                }
+                System.out.println("updating file " + filename + " to version " + version);
+                installed = pullDelta(filename, version, newest, newestInfo);
+            } else {
+                System.out.println("copying file " + filename + " at version " + version + ", " + newestInfo.size
+                        + " bytes");
+                installed = pullRanges(filename, version, newestInfo.size, sources, endpoints);
+            }
+            if (!installed) {
+                System.out.println("a newer version of " + filename + " arrived while copying");
+                return true;
             }
-            newest.closeSocket(port);
 
-            versionDB.updateFile(filename, version);
+            directoryIndex.add(filename);
+            lease(filename, sources);
             System.out.println("file has been copied");
             return true;
 
@@ -397,6 +635,73 @@ public class LocalFileServer extends FileServerPOA {
         return false;
     }
 
+    /**
+     * Copies the whole of a file from every server holding its newest
+     * version at once, into a hidden part file that replaces the file when
+     * it's complete. If the copy fails, the part file is kept so the next
+     * attempt at the same version only fetches what's missing.
+     * 
+     * @param filename
+     * @param version
+     *            - version being copied
+     * @param size
+     *            - size of the file on the servers
+     * @param sources
+     *            - servers holding the newest version
+     * @param endpoints
+     *            - data port of each server
+     * @return false if we got a newer version in the meantime
+     * @throws IOException
+     */
+    private boolean pullRanges(String filename, int version, long size, List<FileServer> sources,
+            Map<FileServer, String> endpoints) throws IOException {
+        Path part = new File(myDirectory, "." + filename + ".part").toPath();
+        new RangeDownload(filename, size, version, part, data, compress).download(sources, endpoints);
+        if (!install(filename, part, version, null)) {
+            Files.deleteIfExists(part);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Brings our copy of a file up to date with a remote server's, only
+     * transferring the blocks that changed
+     * 
+     * @param filename
+     * @param version
+     *            - version being copied
+     * @param source
+     *            - server with the newer copy
+     * @param info
+     *            - what the server said about its copy
+     * @return false if we got a newer version in the meantime
+     * @throws IOException
+     */
+    private boolean pullDelta(String filename, int version, FileServer source, fileInfo info) throws IOException {
+        // the changes are made against our copy as it is now, so it's read
+        // at this version throughout
+        PinnedStore ours = pin(getVersion(filename));
+        int blockSize = DeltaSync.blockSize(ours.size(filename));
+        blockSum[] sums = DeltaSync.sums(ours, filename, blockSize);
+        int token = source.openSocketDelta(filename, version, blockSize, sums, compress);
+
+        Path rebuilt = new File(myDirectory, "~" + filename + ".delta").toPath();
+        try {
+            try (DataStream stream = data.open(info.dataEndpoint, token)) {
+                ReadableByteChannel in = receiving(stream, compress);
+                try {
+                    DeltaSync.receive(ours, filename, blockSize, in, rebuilt);
+                } finally {
+                    end(in);
+                }
+            }
+            return install(filename, rebuilt, version, null);
+        } finally {
+            Files.deleteIfExists(rebuilt);
+        }
+    }
+
     /**
      * Get list of connected servers
      */
@@ -421,12 +726,23 @@ public class LocalFileServer extends FileServerPOA {
         }
     }
 
+    /**
+     * Brings our copy of a file up to the newest version on the other
+     * servers, transferring only what changed if we already have a copy
+     * 
+     * @return false if the file doesn't exist anywhere or couldn't be copied
+     */
+    @Override
+    public boolean refreshFile(String filename) {
+        return copyFile(filename);
+    }
+
     /**
      * Gets the size in bytes of a file
      */
     @Override
     public long getFileSize(String filename) {
-        return (new File(filename)).length();
+        return store.size(filename);
     }
 
     /**
@@ -434,10 +750,42 @@ public class LocalFileServer extends FileServerPOA {
      */
     @Override
     public int getSessionID() {
-        int id = SessionCounter;
-        SessionCounter++;
-        openFiles.put(id, null);
-        return id;
+        return sessions.create();
+    }
+
+    /**
+     * Opens another handle on a session, which can have a file open of its
+     * own. The handle's id is used in place of the session's.
+     * 
+     * @return the handle's id, or -1 if the session has been closed
+     */
+    @Override
+    public int openHandle(int sessionID) {
+        return sessions.openHandle(sessionID);
+    }
+
+    /**
+     * Closes a handle, or a whole session and its handles, dropping anything
+     * staged and not committed. Sessions left unused are closed on their own
+     * after a while.
+     */
+    @Override
+    public void closeSession(int sessionID) {
+        sessions.close(sessionID);
+    }
+
+    /**
+     * Gets the file a session or handle has open
+     * 
+     * @param sessionID
+     * @return the open file, or null if there isn't one
+     */
+    private OpenFile sessionFile(int sessionID) {
+        OpenFile file = sessions.get(sessionID);
+        if (file == null) {
+            System.out.println("No file open on session " + sessionID);
+        }
+        return file;
     }
 
     /**
@@ -446,54 +794,318 @@ public class LocalFileServer extends FileServerPOA {
      */
     @Override
     public boolean closeFile(byte[] data, int sessionID) {
-        OpenFile file = openFiles.get(sessionID);
-
-        if (!massCheckVersion(file.filename, file.version)) {
-            System.out.println("file was out of date");
+        OpenFile file = sessionFile(sessionID);
+        if (file == null) {
             return false;
         }
+        return save(file, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    }
 
+    /**
+     * Writes a session's new data for its open range and pushes the new
+     * version out to the other servers holding the file
+     * 
+     * @param file
+     *            - the session's open file
+     * @param data
+     *            - replacement data for the open range
+     * @param length
+     *            - number of bytes of replacement data
+     * @return false if a save since the range was opened overlapped it,
+     *         another server has a newer version, or the data couldn't be
+     *         written
+     */
+    private boolean save(OpenFile file, ReadableByteChannel data, long length) {
+        final String filename = file.filename;
+        // servers that can't be reached are left out, as they can't be
+        // holding a newer version we'd know how to copy anyway
+        Map<FileServer, fileInfo> copies = copies(filename);
+
+        // if the server has a file, we should make it update to this one,
+        // closest first
         ArrayList<FileServer> had = new ArrayList<FileServer>();
-        for (FileServer server : servers) {
-            // if the server has a file, we should make it copy this one
-            if (server.hasFile(file.filename)) {
-                server.purgeFile(file.filename);
+        for (FileServer server : latencies.sort(copies.keySet())) {
+            fileInfo info = copies.get(server);
+            if (info != null && info.present) {
                 had.add(server);
             }
         }
 
-        System.out.println("Saving new version of " + file.filename + " to server.  Version: " + (file.version + 1));
-        file.write(data);
-        versionDB.updateFile(file.filename, file.version + 1);
+        // the file only needs to be held while our copy is changed, the new
+        // version is pushed out after letting go
+        final int version;
+        Lock lock = locks.write(filename);
+        lock.lock();
+        try {
+            int current = getVersion(filename);
+            // if the file has moved on since the range was opened, the range
+            // is moved to where it is now, as long as none of the saves since
+            // then touched it
+            long[] range = ledger.rebase(filename, file.version, current, file.start, file.end);
+            if (range == null) {
+                System.out.println("file was out of date");
+                return false;
+            }
+            // servers behind us are still being sent our earlier saves
+            for (fileInfo info : copies.values()) {
+                if (info.present && info.version > current) {
+                    System.out.println("file was out of date");
+                    return false;
+                }
+            }
+
+            version = current + 1;
+            if (current != file.version) {
+                System.out.println("Moved range of " + filename + " opened at version " + file.version + " to ["
+                        + range[0] + ", " + range[1] + ")");
+            }
+            System.out.println("Saving new version of " + filename + " to server.  Version: " + version);
+            try {
+                store.write(filename, range[0], range[1], data, length);
+            } catch (IOException e) {
+                // nothing is recorded or sent on, but part of the range may
+                // have been written over already
+                e.printStackTrace();
+                cache.invalidate(filename);
+                return false;
+            }
+            setVersion(filename, version);
+            ledger.record(filename, version, range[0], range[1], length);
+        } finally {
+            lock.unlock();
+        }
 
+        // the changes are worked out against the head's copy, so only servers
+        // holding the version we just saved over can be in the chain, with
+        // the closest at its head. The rest pull the new version themselves
+        ArrayList<FileServer> chained = new ArrayList<FileServer>();
+        ArrayList<chainLink> chain = new ArrayList<chainLink>();
+        ArrayList<FileServer> lagging = new ArrayList<FileServer>();
         for (FileServer server : had) {
-            server.getFile(file.filename);
+            fileInfo info = copies.get(server);
+            if (info.version == version - 1) {
+                chained.add(server);
+                chain.add(new chainLink(server, info.dataEndpoint));
+            } else {
+                lagging.add(server);
+            }
+        }
+
+        Map<FileServer, HeldLease> leases = held(filename);
+        if (!chain.isEmpty() && pushChain(filename, version, chain)) {
+            // our leases on their copies carry on at the new version
+            for (FileServer server : chained) {
+                HeldLease lease = leases.get(server);
+                if (lease != null && lease.info.version < version) {
+                    lease.info.version = version;
+                    lease.info.size = store.size(filename);
+                }
+            }
+        } else {
+            lagging.addAll(chained);
+        }
+        if (!lagging.isEmpty()) {
+            // have each server pull the changes itself instead
+            leases.keySet().removeAll(lagging);
+            FanOut.call(lagging, new FanOut.PeerCall<Boolean>() {
+                @Override
+                public Boolean call(FileServer server) {
+                    return server.refreshFile(filename);
+                }
+            }, COPY_TIMEOUT);
         }
 
         return true;
     }
 
+    /**
+     * Pushes the changes in a new version of a file down a chain of servers
+     * holding the previous version. Each server forwards the changes to the
+     * next as it receives them, so we only send them once.
+     * 
+     * @param filename
+     * @param version
+     *            - the new version
+     * @param chain
+     *            - servers to update, in the order the changes pass through
+     *            them
+     * @return true once every server in the chain has the new version, false
+     *         if the chain couldn't be started
+     */
+    private boolean pushChain(String filename, int version, List<chainLink> chain) {
+        chainLink head = chain.get(0);
+        chainLink[] next = chain.subList(1, chain.size()).toArray(new chainLink[chain.size() - 1]);
+        try {
+            // every server in the chain holds the previous version, so the head's
+            // checksums describe all of their copies. The changes are read at
+            // the new version, and give up if it's saved over meanwhile
+            PinnedStore pinned = pin(version);
+            int blockSize = DeltaSync.blockSize(pinned.size(filename));
+            blockSum[] sums = head.server.getBlockSums(filename, blockSize);
+            int token = head.server.openSocketChain(filename, version, blockSize, next, _this(), compress);
+            try (DataStream stream = data.open(head.dataEndpoint, token)) {
+                WritableByteChannel out = sending(stream, compress);
+                long sent;
+                try {
+                    sent = DeltaSync.send(pinned, filename, blockSize, sums, out);
+                    finish(out);
+                } finally {
+                    end(out);
+                }
+                System.out.println("Pushed " + sent + " new bytes of " + filename + " down a chain of " + chain.size()
+                        + " servers");
+                // wait for the chain to finish
+                stream.shutdownOutput();
+                return awaitAck(stream);
+            }
+        } catch (IOException | org.omg.CORBA.SystemException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Waits for the far end of a stream to say it's done
+     * 
+     * @param stream
+     * @return true if the acknowledgement arrived
+     * @throws IOException
+     */
+    private static boolean awaitAck(DataStream stream) throws IOException {
+        ByteBuffer ack = ByteBuffer.allocate(1);
+        while (ack.hasRemaining()) {
+            if (stream.read(ack) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a range of a file to be read and written in chunks, so large
+     * ranges never have to be held in a single buffer.
+     * 
+     * @return the number of bytes in the range, or -1 if the session isn't
+     *         open
+     */
+    @Override
+    public long openStream(String filename, long start, long end, int sessionID) {
+        OpenFile file = new OpenFile(filename, start, end, getVersion(filename));
+        if (!sessions.put(sessionID, file)) {
+            System.out.println("Session " + sessionID + " isn't open");
+            return -1;
+        }
+        return file.len;
+    }
+
+    /**
+     * Opens a range of a file the client already has a copy of, without
+     * sending it again. The range is only opened if the client's copy is of
+     * the current version.
+     * 
+     * @return false if the client's copy is out of date or the session isn't
+     *         open
+     */
+    @Override
+    public boolean reopenFile(String filename, long start, long end, int sessionID, int version) {
+        if (version < 0 || version != getVersion(filename)) {
+            return false;
+        }
+        return sessions.put(sessionID, new OpenFile(filename, start, end, version));
+    }
+
+    /**
+     * Reads the next chunk of a session's open range
+     */
+    @Override
+    public byte[] readChunk(int sessionID, int maxLength) {
+        OpenFile file = sessionFile(sessionID);
+        if (file == null) {
+            return new byte[0];
+        }
+        try {
+            return file.readChunk(maxLength);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Stages a chunk of replacement data for a session's open range
+     */
+    @Override
+    public void writeChunk(byte[] data, int sessionID) {
+        OpenFile file = sessionFile(sessionID);
+        if (file == null) {
+            return;
+        }
+        try {
+            file.writeChunk(data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Saves the chunks written since the range was opened, the same way
+     * closeFile saves a whole buffer. If any chunk couldn't be staged, they're
+     * all discarded and nothing is saved.
+     */
+    @Override
+    public boolean commit(int sessionID) {
+        OpenFile file = sessionFile(sessionID);
+        if (file == null) {
+            return false;
+        }
+        if (file.stagingFailed) {
+            // saving what did get staged would drop the missing chunks
+            System.out.println("Discarding chunks for " + file.filename + ", some couldn't be staged");
+            file.discardStaged();
+            return false;
+        }
+        if (file.staged == null) {
+            return save(file, Channels.newChannel(new ByteArrayInputStream(new byte[0])), 0);
+        }
+        try (FileChannel staged = FileChannel.open(file.staged, StandardOpenOption.READ)) {
+            return save(file, staged, staged.size());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            file.discardStaged();
+        }
+    }
+
     /**
      * Opens a file and sends the range of data down to a client to modify.
      * Server keeps track of that file being open for that client.
      */
     @Override
     public byte[] openFile(String filename, long start, long end, int sessionID) {
-        int version = getVersion(filename);
-        OpenFile file = new OpenFile(filename, start, end, version);
-        openFiles.put(sessionID, file);
-
-        File f = new File(filename);
-        // get byte buffer as string
-
-        try (RandomAccessFile raf = new RandomAccessFile(f, "r"); FileInputStream in = new FileInputStream(f)) {
-            raf.seek(start);
-            byte[] data = new byte[(int) file.len];
-            raf.read(data);
-            return data;
+        // the version and the data have to be read without a save between
+        Lock lock = locks.read(filename);
+        lock.lock();
+        try {
+            int version = getVersion(filename);
+            OpenFile file = new OpenFile(filename, start, end, version);
+            if (!sessions.put(sessionID, file)) {
+                System.out.println("Session " + sessionID + " isn't open");
+                return new byte[0];
+            }
+
+            ByteBuffer data = ByteBuffer.allocate((int) file.len);
+            while (data.hasRemaining()) {
+                if (cache.read(store, filename, version, start + data.position(), data) < 0) {
+                    break;
+                }
+            }
+            return data.array();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(-1);
+        } finally {
+            lock.unlock();
         }
         return null;
     }
@@ -508,21 +1120,133 @@ public class LocalFileServer extends FileServerPOA {
     }
 
     /**
-     * Checks the file version of a file across all servers
+     * Finds out what the other servers holding a file have. Servers we hold a
+     * lease from are answered from the lease, the rest are asked for a lease,
+     * all at once. Servers neither the catalog nor our leases list as holding
+     * the file aren't asked at all.
      * 
      * @param filename
-     * @param version
-     * @return true if the file version matches what all servers have
+     * @return each holder's copy, leaving out holders that didn't answer
+     */
+    private Map<FileServer, fileInfo> copies(final String filename) {
+        Map<FileServer, HeldLease> leases = held(filename);
+        Set<FileServer> holders = new LinkedHashSet<FileServer>(leases.keySet());
+        for (String host : catalog.holders(filename)) {
+            FileServer server = addresses.get(host);
+            if (server != null) {
+                holders.add(server);
+            }
+        }
+        // servers that copied the file from us hold a lease on it, even if
+        // the catalog hasn't heard they have it yet
+        List<FileListener> leased = this.leases.holders(filename);
+        for (FileServer server : peers()) {
+            if (leased.contains(server)) {
+                holders.add(server);
+            }
+        }
+
+        HashMap<FileServer, fileInfo> copies = new HashMap<FileServer, fileInfo>();
+        ArrayList<FileServer> ask = new ArrayList<FileServer>();
+        long now = System.currentTimeMillis();
+        for (FileServer server : holders) {
+            HeldLease lease = leases.get(server);
+            if (lease != null && lease.expires > now) {
+                copies.put(server, lease.info);
+            } else {
+                ask.add(server);
+            }
+        }
+
+        copies.putAll(lease(filename, ask));
+        return copies;
+    }
+
+    /**
+     * Takes leases on a group of servers' copies of a file, all at once, so
+     * they know we hold it and call us back when it changes
+     * 
+     * @param filename
+     * @param servers
+     * @return each server's copy, leaving out servers that didn't answer
+     */
+    private Map<FileServer, fileInfo> lease(final String filename, List<FileServer> servers) {
+        Map<FileServer, HeldLease> leases = held(filename);
+        HashMap<FileServer, fileInfo> copies = new HashMap<FileServer, fileInfo>();
+        long now = System.currentTimeMillis();
+        final FileListener self = _this();
+        List<lease> granted = FanOut.call(servers, new FanOut.PeerCall<lease>() {
+            @Override
+            public lease call(FileServer server) {
+                return server.acquireLease(filename, self);
+            }
+        }, PEER_TIMEOUT);
+        for (int i = 0; i < servers.size(); i++) {
+            lease lease = granted.get(i);
+            if (lease != null) {
+                // servers that stopped answering pings are tracked again once
+                // they answer
+                latencies.track(servers.get(i));
+                copies.put(servers.get(i), lease.file);
+                leases.put(servers.get(i), new HeldLease(lease.file, now + lease.duration));
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Gets the leases we hold on other servers' copies of a file
+     * 
+     * @param filename
+     * @return leases by the server that granted them
+     */
+    private Map<FileServer, HeldLease> held(String filename) {
+        ConcurrentHashMap<FileServer, HeldLease> leases = held.get(filename);
+        if (leases == null) {
+            ConcurrentHashMap<FileServer, HeldLease> created = new ConcurrentHashMap<FileServer, HeldLease>();
+            leases = held.putIfAbsent(filename, created);
+            if (leases == null) {
+                leases = created;
+            }
+        }
+        return leases;
+    }
+
+    /**
+     * Asks a group of servers about a file, all at once
+     * 
+     * @param peers
+     * @param filename
+     * @return what each server knows about the file, in the same order as
+     *         the servers, with null for servers that didn't answer
      */
-    private boolean massCheckVersion(String filename, int version) {
-        boolean valid = checkVersion(filename, version);
-        for (int i = 0; i < servers.size() && valid; i++) {
-            FileServer server = servers.get(i);
-            if (server.hasFile(filename)) {
-                valid = valid && server.checkVersion(filename, version);
+    private List<fileInfo> query(List<FileServer> peers, String filename) {
+        final String[] filenames = { filename };
+        List<fileInfo> infos = new ArrayList<fileInfo>();
+        List<fileInfo[]> answers = FanOut.call(peers, new FanOut.PeerCall<fileInfo[]>() {
+            @Override
+            public fileInfo[] call(FileServer server) {
+                return server.queryFiles(filenames);
+            }
+        }, PEER_TIMEOUT);
+        for (int i = 0; i < peers.size(); i++) {
+            fileInfo[] answer = answers.get(i);
+            if (answer != null) {
+                latencies.track(peers.get(i));
             }
+            infos.add((answer == null || answer.length == 0) ? null : answer[0]);
         }
-        return valid;
+        return infos;
+    }
+
+    /**
+     * Copies the list of connected servers so it can be walked while other
+     * servers connect
+     * 
+     * @return the current servers
+     */
+    private List<FileServer> peers() {
+        return new ArrayList<FileServer>(servers);
     }
 
     /**
@@ -533,6 +1257,23 @@ public class LocalFileServer extends FileServerPOA {
         return versionDB.getVersion(filename);
     }
 
+    /**
+     * Describes a batch of files in one call: whether we have each one, its
+     * version and size, and the data port to pull its data from
+     */
+    @Override
+    public fileInfo[] queryFiles(String[] filenames) {
+        String endpoint = ip.split(":")[0] + ":" + data.port;
+        fileInfo[] infos = new fileInfo[filenames.length];
+        for (int i = 0; i < filenames.length; i++) {
+            String filename = filenames[i];
+            boolean present = hasFile(filename);
+            infos[i] = new fileInfo(filename, present, present ? getVersion(filename) : -1,
+                    present ? store.size(filename) : 0, endpoint);
+        }
+        return infos;
+    }
+
     /**
      * Removes a file from this system
      */
@@ -540,76 +1281,420 @@ public class LocalFileServer extends FileServerPOA {
     public void purgeFile(String filename) {
         System.out.println("Attempting to delete old version of " + filename);
         File file = new File(filename);
-        file.delete();
-        versionDB.updateFile(filename, -1);
+        Lock lock = locks.write(filename);
+        lock.lock();
+        try {
+            invalidate(filename);
+            file.delete();
+            directoryIndex.remove(filename);
+            setVersion(filename, -1);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * Opens a socket to copy a file over
+     * Moves a finished copy of a file into place and records its version,
+     * unless a newer version got here first
+     * 
+     * @param filename
+     * @param replacement
+     *            - the new copy
+     * @param version
+     *            - version of the new copy
+     * @param origin
+     *            - server the new version came from, or null
+     * @return false if our copy was already as new, leaving the replacement
+     *         where it is
+     * @throws IOException
+     */
+    private boolean install(String filename, Path replacement, int version, FileListener origin)
+            throws IOException {
+        Lock lock = locks.write(filename);
+        lock.lock();
+        try {
+            if (version <= getVersion(filename)) {
+                return false;
+            }
+            invalidate(filename);
+            store.replace(filename, replacement);
+            setVersion(filename, version, origin);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a new version of one of our files and lets the other servers
+     * know about it
+     * 
+     * @param filename
+     * @param version
+     *            - new version, or -1 if the file was removed
+     */
+    private void setVersion(String filename, int version) {
+        setVersion(filename, version, null);
+    }
+
+    /**
+     * Records a new version of one of our files that came from another
+     * server, and lets everyone but that server know about it
+     * 
+     * @param filename
+     * @param version
+     *            - new version, or -1 if the file was removed
+     * @param origin
+     *            - server the new version came from, or null
+     */
+    private void setVersion(String filename, int version, FileListener origin) {
+        versionDB.updateFile(filename, version);
+        cache.invalidate(filename);
+        leases.revoke(filename, version, origin);
+        catalog.publish(filename, version);
+    }
+
+    /**
+     * Grants a lease on our copy of a file, along with what we have of it
+     */
+    @Override
+    public lease acquireLease(String filename, FileListener holder) {
+        long duration = leases.grant(filename, holder);
+        return new lease(queryFiles(new String[] { filename })[0], duration);
+    }
+
+    /**
+     * Ends a lease on our copy of a file early
      */
     @Override
-    public int openSocketFile(final String filename) {
-        // transfer a file over a socket
-        final int port = AVAILABLE_SOCKET;
+    public void releaseLease(String filename, FileListener holder) {
+        leases.release(filename, holder);
+    }
+
+    /**
+     * Drops our leases on a file another server has changed or removed, so
+     * our next save checks with the holders again
+     */
+    @Override
+    public void invalidate(String filename, int version) {
+        if (version < 0 || version > getVersion(filename)) {
+            held.remove(filename);
+        }
+    }
 
-        // put file send code in a thread to prevent blocking
-        // this way multiple clients can be downloading at the same time
-        Thread nonblock = new Thread() {
-            public void run() {
+    /**
+     * Forgets anything kept in memory about a file because it is about to be
+     * replaced or removed
+     * 
+     * @param filename
+     */
+    private void invalidate(String filename) {
+        store.invalidate(filename);
+        cache.invalidate(filename);
+        ledger.forget(filename);
+    }
+
+    /**
+     * Sets up a transfer to copy a file over
+     */
+    @Override
+    public int openSocketFile(final String filename, final boolean compressed) {
+        // the file is sent as it is now, or not at all
+        final PinnedStore pinned = pin(getVersion(filename));
+        return openSocket(new DataPort.Transfer() {
+            @Override
+            public void run(DataStream stream) throws IOException {
+                WritableByteChannel out = sending(stream, compressed);
+                // send file over the stream
+                System.out.println("Sending file " + filename + "...");
+
+                long position;
                 try {
-                    ServerSocket serverSocket = new ServerSocket(port);
-                    openSockets.put(port, serverSocket);
-                    File transferFile = new File(filename);
-                    byte[] bytearray = new byte[(int) transferFile.length()];
-                    try (Socket socket = serverSocket.accept();
-                            InputStream input = Files.newInputStream(transferFile.toPath(), StandardOpenOption.READ)) {
-                        System.out.println("Accepted connection : " + socket);
-
-                        // read data into memory
-                        input.read(bytearray, 0, bytearray.length);
-
-                        // send file over socket
-                        System.out.println("Sending file " + filename + "...");
-                        OutputStream os = socket.getOutputStream();
-
-                        // first send filesize over so we know how much to read
-                        ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE);
-                        buffer.putLong(transferFile.length());
-                        os.write(buffer.array());
-
-                        // then write the file data over the socket
-                        os.write(bytearray, 0, bytearray.length);
-                        os.flush();
-                        System.out.println("wrote " + bytearray.length + " bytes to stream.");
-                        System.out.println(filename + " File transfer complete");
+                    // first send filesize over so we know how much to read
+                    long size = pinned.size(filename);
+                    ByteBuffer buffer = ByteBuffer.allocate(Long.SIZE / Byte.SIZE);
+                    buffer.putLong(size);
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        out.write(buffer);
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    openSockets.remove(port);
+
+                    position = pinned.transferTo(filename, 0, size, out);
+                    finish(out);
+                } finally {
+                    end(out);
                 }
+                System.out.println("wrote " + position + " bytes to stream.");
+                System.out.println(filename + " File transfer complete");
             }
-        };
-        nonblock.start();
+        });
+    }
 
-        AVAILABLE_SOCKET++;
-        if (AVAILABLE_SOCKET > 15200) {
-            AVAILABLE_SOCKET = 15123;
+    /**
+     * Sets up a transfer to send a range of a file over
+     */
+    @Override
+    public int openSocketRange(final String filename, final int version, final long start, final long end,
+            final boolean compressed) {
+        if (version != getVersion(filename)) {
+            return -1;
         }
+        return openSocket(new DataPort.Transfer() {
+            @Override
+            public void run(DataStream stream) throws IOException {
+                WritableByteChannel out = sending(stream, compressed);
+                try {
+                    RangeDownload.send(pin(version), filename, start, end, out);
+                    finish(out);
+                } finally {
+                    end(out);
+                }
+            }
+        });
+    }
 
-        return port;
+    /**
+     * Sets up a transfer to send the changes between an old copy of a file
+     * and ours over
+     */
+    @Override
+    public int openSocketDelta(final String filename, final int version, final int blockSize,
+            final blockSum[] sums, final boolean compressed) {
+        if (version != getVersion(filename)) {
+            return -1;
+        }
+        final PinnedStore pinned = pin(version);
+        return openSocket(new DataPort.Transfer() {
+            @Override
+            public void run(DataStream stream) throws IOException {
+                System.out.println("Sending changes to " + filename + "...");
+                WritableByteChannel out = sending(stream, compressed);
+                long sent;
+                try {
+                    sent = DeltaSync.send(pinned, filename, blockSize, sums, out);
+                    finish(out);
+                } finally {
+                    end(out);
+                }
+                System.out.println("sent " + sent + " new bytes of " + pinned.size(filename) + " in " + filename);
+            }
+        });
     }
 
     /**
-     * Closes an open socket when done with file transfering
+     * Sets up a transfer to receive changes pushed down a replication chain,
+     * passing them on to the rest of the chain as they arrive
      */
     @Override
-    public void closeSocket(int port) {
+    public int openSocketChain(final String filename, final int version, final int blockSize,
+            final chainLink[] next, final FileListener origin, final boolean compressed) {
+        return openSocket(new DataPort.Transfer() {
+            @Override
+            public void run(DataStream stream) throws IOException {
+                receiveChain(filename, version, blockSize, stream, next, origin, compressed);
+            }
+        });
+    }
+
+    /**
+     * Works out the digest of a version of our copy of a file, which copies
+     * of the version downloaded elsewhere are checked against
+     */
+    @Override
+    public String getDigest(String filename, int version) {
+        Digest known = digests.get(filename);
+        if (known != null && known.version == version) {
+            return known.value;
+        }
         try {
-            if (openSockets.containsKey(port)) {
-                openSockets.get(port).close();
+            String value = RangeDownload.digest(pin(version), filename);
+            digests.put(filename, new Digest(version, value));
+            return value;
+        } catch (IOException e) {
+            System.out.println("Unable to work out the digest of " + filename + ": " + e);
+            return "";
+        }
+    }
+
+    /**
+     * Gets a view of our files that only reads them at a version
+     * 
+     * @param version
+     * @return the view
+     */
+    private PinnedStore pin(int version) {
+        return new PinnedStore(store, locks, versionDB, version);
+    }
+
+    /**
+     * Gets the channel the sending side of a transfer writes to
+     * 
+     * @param stream
+     * @param compressed
+     *            - true if the receiving side asked for compression
+     * @return the stream, or a channel compressing onto it
+     */
+    private static WritableByteChannel sending(DataStream stream, boolean compressed) {
+        return compressed ? new CompressingChannel(stream) : stream;
+    }
+
+    /**
+     * Gets the channel the receiving side of a transfer reads from
+     * 
+     * @param stream
+     * @param compressed
+     *            - true if the sending side compresses
+     * @return the stream, or a channel decompressing from it
+     */
+    private static ReadableByteChannel receiving(ReadableByteChannel stream, boolean compressed) {
+        return compressed ? new DecompressingChannel(stream) : stream;
+    }
+
+    /**
+     * Sends anything the sending side of a transfer is still holding on to
+     * 
+     * @param out
+     *            - channel from {@link #sending}
+     * @throws IOException
+     */
+    private static void finish(WritableByteChannel out) throws IOException {
+        if (out instanceof CompressingChannel) {
+            CompressingChannel compressor = (CompressingChannel) out;
+            compressor.finish();
+            System.out.println("Compressed " + compressor.rawBytes + " bytes to " + compressor.sentBytes);
+        }
+    }
+
+    /**
+     * Frees the compressor or decompressor behind a channel from
+     * {@link #sending} or {@link #receiving}, however the transfer went
+     * 
+     * @param channel
+     */
+    private static void end(Channel channel) {
+        if (channel instanceof CompressingChannel) {
+            ((CompressingChannel) channel).end();
+        } else if (channel instanceof DecompressingChannel) {
+            ((DecompressingChannel) channel).end();
+        }
+    }
+
+    /**
+     * Gets the checksums of each block of our copy of a file
+     */
+    @Override
+    public blockSum[] getBlockSums(String filename, int blockSize) {
+        // only local reads, so the file can be held throughout
+        Lock lock = locks.read(filename);
+        lock.lock();
+        try {
+            return DeltaSync.sums(store, filename, blockSize);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new blockSum[0];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies changes pushed down a replication chain to our copy of a file
+     * and swaps the new copy in, while forwarding the changes to the next
+     * server in the chain. If the changes can't be applied, the upstream
+     * stream is abandoned and the new version is pulled instead. Otherwise
+     * the upstream server is told when we and everything after us are done.
+     * 
+     * @param filename
+     * @param version
+     *            - version the changes bring the file to
+     * @param blockSize
+     *            - block size the changes were made against
+     * @param upstream
+     *            - stream the changes arrive on
+     * @param next
+     *            - rest of the chain
+     * @param origin
+     *            - server that saved the new version
+     * @param compressed
+     *            - true if the changes arrive compressed, in which case
+     *            they're passed on still compressed
+     * @throws IOException
+     */
+    private void receiveChain(String filename, int version, int blockSize, DataStream upstream,
+            chainLink[] next, FileListener origin, boolean compressed) throws IOException {
+        DataStream downstream = null;
+        if (next.length > 0) {
+            try {
+                int token = next[0].server.openSocketChain(filename, version, blockSize,
+                        Arrays.copyOfRange(next, 1, next.length), origin, compressed);
+                downstream = data.open(next[0].dataEndpoint, token);
+            } catch (IOException | org.omg.CORBA.SystemException e) {
+                System.out.println("Unable to forward " + filename + " down the chain: " + e);
+            }
+        }
+
+        Path rebuilt = new File(myDirectory, "~" + filename + ".delta").toPath();
+        boolean aborted = false;
+        try {
+            ReadableByteChannel source = (downstream == null) ? upstream : new TeeChannel(upstream, downstream);
+            ReadableByteChannel in = receiving(source, compressed);
+            try {
+                // the changes are made against our copy as it is now
+                DeltaSync.receive(pin(getVersion(filename)), filename, blockSize, in, rebuilt);
+            } finally {
+                end(in);
+            }
+            if (install(filename, rebuilt, version, origin)) {
+                System.out.println("Updated " + filename + " to version " + version + " from the chain");
+            } else {
+                System.out.println("Ignored version " + version + " of " + filename + ", ours is newer");
             }
         } catch (IOException e) {
             e.printStackTrace();
+            // stop the upstream server sending rather than leave it waiting
+            // on us while we copy the whole file
+            upstream.close();
+            aborted = true;
+            copyFile(filename);
+        } finally {
+            Files.deleteIfExists(rebuilt);
         }
+
+        if (downstream != null) {
+            try {
+                // if we stopped reading early, let the rest of the chain
+                // know there's nothing more coming
+                downstream.shutdownOutput();
+                awaitAck(downstream);
+            } finally {
+                downstream.close();
+            }
+        }
+        if (aborted) {
+            return;
+        }
+        ByteBuffer ack = ByteBuffer.allocate(1);
+        while (ack.hasRemaining()) {
+            upstream.write(ack);
+        }
+    }
+
+    /**
+     * Sets up a transfer for the next stream opened with its token on our
+     * data port
+     * 
+     * @param transfer
+     * @return the token
+     */
+    private int openSocket(DataPort.Transfer transfer) {
+        return data.register(transfer);
+    }
+
+    /**
+     * Forgets a transfer whose stream was never opened
+     */
+    @Override
+    public void closeSocket(int token) {
+        data.cancel(token);
     }
 }
@@ -0,0 +1,519 @@
+package NPFSApp.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * A file kept as its original contents plus an append-only buffer of inserted
+ * data. The file's contents are described by a list of pieces, each pointing
+ * into one of the two. Edits are logged to disk so the table survives a
+ * restart, and can be folded back into a flat file by compacting.
+ * 
+ * Sidecar files are hidden so they never show up as served files:
+ * .name.add holds inserted data and .name.pieces is the edit log.
+ * 
+ * @author nhydock
+ *
+ */
+class PieceTable {
+
+    /**
+     * Marks the start of an edit log
+     */
+    private static final long MAGIC = 0x4e50465350494543L;
+    /**
+     * Log record for a range being replaced by data in the add buffer
+     */
+    private static final int EDIT = 1;
+    /**
+     * Log record written once a compacted copy is ready to be swapped in
+     */
+    private static final int COMPACT = 2;
+    /**
+     * Size of a log record on disk
+     */
+    private static final int RECORD_SIZE = Integer.SIZE / Byte.SIZE + 4 * Long.SIZE / Byte.SIZE;
+
+    /**
+     * A slice of either the original file or the add buffer
+     */
+    static class Piece {
+        /**
+         * True if this piece points into the add buffer
+         */
+        final boolean added;
+        /**
+         * Where the piece starts in its backing file
+         */
+        final long offset;
+        /**
+         * Number of bytes in the piece
+         */
+        final long length;
+
+        Piece(boolean added, long offset, long length) {
+            this.added = added;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * Gets part of this piece
+         * 
+         * @param from
+         *            - start relative to this piece
+         * @param to
+         *            - end relative to this piece
+         * @return the slice
+         */
+        Piece slice(long from, long to) {
+            return new Piece(added, offset + from, to - from);
+        }
+    }
+
+    /**
+     * The file as it was before any of the logged edits
+     */
+    final File base;
+    /**
+     * Append-only buffer of inserted data
+     */
+    final File addFile;
+    /**
+     * Append-only log of edits
+     */
+    final File logFile;
+    /**
+     * Where a compacted copy is built before being swapped in
+     */
+    final File compactFile;
+
+    /**
+     * Pieces making up the file, in order
+     */
+    ArrayList<Piece> pieces;
+    /**
+     * Size of the file's contents
+     */
+    long size;
+    /**
+     * Bytes written to the add buffer so far
+     */
+    long addSize;
+
+    /**
+     * Open channel on the base file
+     */
+    private FileChannel baseChannel;
+    /**
+     * Open channel on the add buffer
+     */
+    private FileChannel addChannel;
+
+    /**
+     * Creates a table for a file with no edits yet
+     * 
+     * @param directory
+     *            - directory the file is in
+     * @param filename
+     *            - name of the file
+     */
+    PieceTable(File directory, String filename) {
+        this.base = new File(directory, filename);
+        this.addFile = new File(directory, "." + filename + ".add");
+        this.logFile = new File(directory, "." + filename + ".pieces");
+        this.compactFile = new File(directory, "." + filename + ".compact");
+        reset();
+    }
+
+    /**
+     * Checks if a file has an edit log waiting to be loaded
+     * 
+     * @param directory
+     * @param filename
+     * @return true if there's a log for the file
+     */
+    static boolean exists(File directory, String filename) {
+        return new File(directory, "." + filename + ".pieces").exists();
+    }
+
+    /**
+     * Loads a file's table by replaying its edit log. If the server stopped
+     * in the middle of a compaction, the compaction is finished instead.
+     * 
+     * @param directory
+     * @param filename
+     * @return the table
+     * @throws IOException
+     */
+    static PieceTable load(File directory, String filename) throws IOException {
+        PieceTable table = new PieceTable(directory, filename);
+        if (!table.logFile.exists()) {
+            return table;
+        }
+
+        try (FileChannel log = FileChannel.open(table.logFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Long.SIZE / Byte.SIZE);
+            readFully(log, header, 0);
+            header.flip();
+            if (header.remaining() < header.capacity() || header.getLong() != MAGIC
+                    || header.getLong() != table.base.length()) {
+                System.out.println("Discarding stale edit log for " + filename);
+                table.discard();
+                return table;
+            }
+
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            for (long position = header.capacity(); position + RECORD_SIZE <= log.size(); position += RECORD_SIZE) {
+                record.clear();
+                readFully(log, record, position);
+                record.flip();
+                int type = record.getInt();
+                long start = record.getLong();
+                long end = record.getLong();
+                long offset = record.getLong();
+                long length = record.getLong();
+                if (type == COMPACT) {
+                    // the compacted copy was complete, make sure it's in place
+                    if (table.compactFile.exists()) {
+                        Files.move(table.compactFile.toPath(), table.base.toPath(),
+                                StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    table.discard();
+                    return table;
+                }
+                table.splice(start, end, new Piece(true, offset, length));
+                table.addSize = Math.max(table.addSize, offset + length);
+            }
+        }
+        table.compactFile.delete();
+        return table;
+    }
+
+    /**
+     * Number of pieces the file is currently split into
+     * 
+     * @return piece count
+     */
+    synchronized int pieceCount() {
+        return pieces.size();
+    }
+
+    /**
+     * Gets the size of the file's contents
+     * 
+     * @return size in bytes
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Reads the file's contents through the table
+     * 
+     * @param position
+     *            - offset into the contents
+     * @param dst
+     *            - buffer to fill
+     * @return bytes read, or -1 if the position is past the end
+     * @throws IOException
+     */
+    synchronized int read(long position, ByteBuffer dst) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int read = 0;
+        long pieceStart = 0;
+        for (Piece piece : pieces) {
+            long pieceEnd = pieceStart + piece.length;
+            if (pieceEnd > position) {
+                long from = position - pieceStart;
+                int count = (int) Math.min(dst.remaining(), piece.length - from);
+                ByteBuffer slice = dst.duplicate();
+                slice.limit(slice.position() + count);
+                readFully(channel(piece), slice, piece.offset + from);
+                dst.position(slice.position());
+                read += count;
+                position += count;
+                if (!dst.hasRemaining()) {
+                    break;
+                }
+            }
+            pieceStart = pieceEnd;
+        }
+        return read;
+    }
+
+    /**
+     * Sends a section of the file's contents to a channel
+     * 
+     * @param position
+     *            - offset into the contents
+     * @param count
+     *            - most bytes to send
+     * @param target
+     *            - channel to write to
+     * @return bytes sent
+     * @throws IOException
+     */
+    synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        long pieceStart = 0;
+        for (Piece piece : pieces) {
+            long pieceEnd = pieceStart + piece.length;
+            if (pieceEnd > position && sent < count) {
+                long from = position - pieceStart;
+                long n = Math.min(count - sent, piece.length - from);
+                long done = FlatFileStore.transfer(channel(piece), piece.offset + from, n, target);
+                sent += done;
+                position += done;
+                if (done < n) {
+                    break;
+                }
+            }
+            pieceStart = pieceEnd;
+        }
+        return sent;
+    }
+
+    /**
+     * Replaces a range of the file with new data. Same length edits that
+     * fall inside a single piece are written straight into its backing file,
+     * anything else is appended to the add buffer and logged.
+     * 
+     * @param start
+     *            - start of the range
+     * @param end
+     *            - end of the range
+     * @param data
+     *            - channel supplying the new data
+     * @param length
+     *            - number of bytes to take from the channel
+     * @throws IOException
+     */
+    synchronized void replace(long start, long end, ReadableByteChannel data, long length) throws IOException {
+        if (length == end - start) {
+            long pieceStart = 0;
+            for (Piece piece : pieces) {
+                long pieceEnd = pieceStart + piece.length;
+                if (pieceStart <= start && end <= pieceEnd) {
+                    File backing = piece.added ? addFile : base;
+                    FlatFileStore.overwrite(backing.toPath(), piece.offset + start - pieceStart, data, length);
+                    return;
+                }
+                pieceStart = pieceEnd;
+            }
+        }
+
+        if (!logFile.exists()) {
+            writeHeader();
+        }
+
+        long offset = addSize;
+        FileChannel add = addChannel();
+        add.position(offset);
+        FlatFileStore.append(data, length, add);
+        add.force(false);
+        addSize += length;
+
+        log(EDIT, start, end, offset, length);
+        splice(start, end, new Piece(true, offset, length));
+    }
+
+    /**
+     * Folds every edit back into a flat copy of the file, swaps it in over
+     * the base and drops the sidecar files
+     * 
+     * @throws IOException
+     */
+    synchronized void compact() throws IOException {
+        if (!logFile.exists()) {
+            return;
+        }
+        try (FileChannel out = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (Piece piece : pieces) {
+                FlatFileStore.transfer(channel(piece), piece.offset, piece.length, out);
+            }
+            out.force(true);
+        }
+        log(COMPACT, 0, size, 0, 0);
+        close();
+        Files.move(compactFile.toPath(), base.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        discard();
+    }
+
+    /**
+     * Throws away the edit log and add buffer, leaving the base as the file
+     */
+    synchronized void discard() {
+        close();
+        logFile.delete();
+        addFile.delete();
+        compactFile.delete();
+        reset();
+    }
+
+    /**
+     * Starts the table over as a single piece covering the base
+     */
+    private void reset() {
+        pieces = new ArrayList<Piece>();
+        size = base.length();
+        addSize = 0;
+        if (size > 0) {
+            pieces.add(new Piece(false, 0, size));
+        }
+    }
+
+    /**
+     * Replaces the pieces covering [start, end) with a new piece
+     * 
+     * @param start
+     * @param end
+     * @param insert
+     */
+    private void splice(long start, long end, Piece insert) {
+        ArrayList<Piece> result = new ArrayList<Piece>(pieces.size() + 2);
+        boolean inserted = false;
+        long pieceStart = 0;
+        for (Piece piece : pieces) {
+            long pieceEnd = pieceStart + piece.length;
+            if (pieceEnd <= start) {
+                result.add(piece);
+            } else {
+                if (pieceStart < start) {
+                    result.add(piece.slice(0, start - pieceStart));
+                }
+                if (!inserted) {
+                    if (insert.length > 0) {
+                        result.add(insert);
+                    }
+                    inserted = true;
+                }
+                if (pieceEnd > end) {
+                    result.add(piece.slice(Math.max(end - pieceStart, 0), piece.length));
+                }
+            }
+            pieceStart = pieceEnd;
+        }
+        if (!inserted && insert.length > 0) {
+            result.add(insert);
+        }
+        pieces = result;
+        size += insert.length - (Math.min(end, size) - start);
+    }
+
+    /**
+     * Starts a new edit log recording which base it applies to
+     * 
+     * @throws IOException
+     */
+    private void writeHeader() throws IOException {
+        try (FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(2 * Long.SIZE / Byte.SIZE);
+            header.putLong(MAGIC);
+            header.putLong(base.length());
+            header.flip();
+            while (header.hasRemaining()) {
+                log.write(header);
+            }
+            log.force(false);
+        }
+    }
+
+    /**
+     * Appends a record to the edit log and syncs it
+     * 
+     * @throws IOException
+     */
+    private void log(int type, long start, long end, long offset, long length) throws IOException {
+        try (FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+            record.putInt(type);
+            record.putLong(start);
+            record.putLong(end);
+            record.putLong(offset);
+            record.putLong(length);
+            record.flip();
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            log.force(false);
+        }
+    }
+
+    /**
+     * Gets the open channel backing a piece
+     * 
+     * @param piece
+     * @return channel on the base or the add buffer
+     * @throws IOException
+     */
+    private FileChannel channel(Piece piece) throws IOException {
+        if (piece.added) {
+            return addChannel();
+        }
+        if (baseChannel == null) {
+            baseChannel = FileChannel.open(base.toPath(), StandardOpenOption.READ);
+        }
+        return baseChannel;
+    }
+
+    /**
+     * Gets the open channel on the add buffer, creating it if needed
+     * 
+     * @return channel on the add buffer
+     * @throws IOException
+     */
+    private FileChannel addChannel() throws IOException {
+        if (addChannel == null) {
+            addChannel = FileChannel.open(addFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        return addChannel;
+    }
+
+    /**
+     * Closes any open channels on the backing files
+     */
+    synchronized void close() {
+        try {
+            if (baseChannel != null) {
+                baseChannel.close();
+            }
+            if (addChannel != null) {
+                addChannel.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        baseChannel = null;
+        addChannel = null;
+    }
+
+    /**
+     * Fills a buffer from a channel at a position, stopping early only at the
+     * end of the channel
+     * 
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, position + dst.position() - start) < 0) {
+                break;
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package NPFSApp.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage layout for insert and delete heavy workloads. Edits that change the
+ * length of a range are appended to a per-file piece table instead of
+ * shifting the rest of the file, and a background compactor folds them back
+ * into a flat file once a file has been split into too many pieces.
+ * 
+ * Files that have never had a length changing edit are stored flat.
+ * 
+ * @author nhydock
+ *
+ */
+public class PieceTableStore implements FileStore {
+
+    /**
+     * Number of pieces a file can be split into before it gets compacted
+     */
+    public static final int DEFAULT_COMPACT_THRESHOLD = 256;
+
+    /**
+     * Seconds between compactor runs
+     */
+    private static final long COMPACT_INTERVAL = 30;
+
+    /**
+     * Used for files without a piece table
+     */
+    final FlatFileStore flat;
+
+    /**
+     * Piece tables of files that have been edited, by file name
+     */
+    private final HashMap<String, PieceTable> tables;
+
+    /**
+     * Number of pieces a file can be split into before it gets compacted
+     */
+    final int threshold;
+
+    /**
+     * Runs compaction in the background
+     */
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * Creates a piece table store over a directory
+     * 
+     * @param directory
+     * @param threshold
+     *            - number of pieces a file can have before being compacted
+     */
+    public PieceTableStore(File directory, int threshold) {
+        this.flat = new FlatFileStore(directory);
+        this.tables = new HashMap<String, PieceTable>();
+        this.threshold = threshold;
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "piece-table-compactor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                compact();
+            }
+        }, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public long size(String filename) {
+        PieceTable table = table(filename, false);
+        return (table == null) ? flat.size(filename) : table.size();
+    }
+
+    @Override
+    public int read(String filename, long position, ByteBuffer dst) throws IOException {
+        PieceTable table = table(filename, false);
+        return (table == null) ? flat.read(filename, position, dst) : table.read(position, dst);
+    }
+
+    @Override
+    public long transferTo(String filename, long position, long count, WritableByteChannel target)
+            throws IOException {
+        PieceTable table = table(filename, false);
+        return (table == null) ? flat.transferTo(filename, position, count, target) : table.transferTo(position,
+                count, target);
+    }
+
+    @Override
+    public void write(String filename, long start, long end, ReadableByteChannel data, long length)
+            throws IOException {
+        PieceTable table = table(filename, length != end - start);
+        if (table == null) {
+            flat.write(filename, start, end, data, length);
+        } else {
+            table.replace(start, end, data, length);
+        }
+    }
+
+    /**
+     * Drops the file's piece table and sidecar files
+     */
+    @Override
+    public void invalidate(String filename) {
+        PieceTable table;
+        synchronized (tables) {
+            table = tables.remove(filename);
+        }
+        if (table == null) {
+            table = new PieceTable(flat.directory, filename);
+        }
+        table.discard();
+    }
+
+    /**
+     * Moves the new copy into place flat, its piece table having been
+     * dropped when it was invalidated
+     */
+    @Override
+    public void replace(String filename, Path replacement) throws IOException {
+        flat.replace(filename, replacement);
+    }
+
+    /**
+     * Finds the piece table for a file, loading it from its edit log if one
+     * exists
+     * 
+     * @param filename
+     * @param create
+     *            - true to create a table if the file doesn't have one
+     * @return the table, or null if the file has none and none was created
+     */
+    private PieceTable table(String filename, boolean create) {
+        synchronized (tables) {
+            PieceTable table = tables.get(filename);
+            if (table == null && (create || PieceTable.exists(flat.directory, filename))) {
+                try {
+                    table = PieceTable.load(flat.directory, filename);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    table = new PieceTable(flat.directory, filename);
+                }
+                tables.put(filename, table);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Compacts every file split into more pieces than the threshold
+     */
+    void compact() {
+        ArrayList<String> due = new ArrayList<String>();
+        synchronized (tables) {
+            for (String filename : tables.keySet()) {
+                if (tables.get(filename).pieceCount() > threshold) {
+                    due.add(filename);
+                }
+            }
+        }
+        for (String filename : due) {
+            PieceTable table;
+            synchronized (tables) {
+                table = tables.get(filename);
+            }
+            if (table == null) {
+                continue;
+            }
+            try {
+                System.out.println("Compacting " + filename + " from " + table.pieceCount() + " pieces");
+                table.compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Lock;
+
+import util.Versioning;
+
+/**
+ * A read-only view of a store that only hands out one version of a file, for
+ * sending it to another server. Each read holds the file's read lock just
+ * while it copies out of the store, so a slow receiver never holds up a save,
+ * and fails once the file has moved past the version, so a transfer never
+ * mixes data from two versions.
+ * 
+ * @author nhydock
+ *
+ */
+class PinnedStore implements ReadableStore {
+
+    /**
+     * Most bytes copied out of the store under a single hold of the lock
+     */
+    private static final int CHUNK = 64 * 1024;
+
+    /**
+     * Store the file is read from
+     */
+    private final FileStore store;
+
+    /**
+     * Locks the store's files are read and changed under
+     */
+    private final FileLocks locks;
+
+    /**
+     * Current version of each file
+     */
+    private final Versioning versions;
+
+    /**
+     * Version reads are pinned to
+     */
+    final int version;
+
+    /**
+     * Creates a view of a file at a version
+     * 
+     * @param store
+     * @param locks
+     * @param versions
+     * @param version
+     *            - version the file must still be at when read
+     */
+    PinnedStore(FileStore store, FileLocks locks, Versioning versions, int version) {
+        this.store = store;
+        this.locks = locks;
+        this.versions = versions;
+        this.version = version;
+    }
+
+    /**
+     * Fails if a file has moved on from the pinned version. Called with the
+     * file's read lock held.
+     * 
+     * @param filename
+     * @throws IOException
+     */
+    private void check(String filename) throws IOException {
+        int current = versions.getVersion(filename);
+        if (current != version) {
+            throw new IOException(filename + " went from version " + version + " to " + current
+                    + " while being sent");
+        }
+    }
+
+    @Override
+    public long size(String filename) {
+        Lock lock = locks.read(filename);
+        lock.lock();
+        try {
+            return store.size(filename);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read(String filename, long position, ByteBuffer dst) throws IOException {
+        Lock lock = locks.read(filename);
+        lock.lock();
+        try {
+            check(filename);
+            return store.read(filename, position, dst);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies through the heap a chunk at a time, so the lock is never held
+     * while writing to the target
+     */
+    @Override
+    public long transferTo(String filename, long position, long count, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK, count));
+        long sent = 0;
+        while (sent < count) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - sent));
+            int read = read(filename, position + sent, buffer);
+            if (read < 0) {
+                break;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            sent += read;
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,573 @@
+package NPFSApp.implementation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
+
+import NPFSApp.FileServer;
+
+/**
+ * Downloads a file from several servers holding the same version at once.
+ * The file is split into fixed size ranges that each server takes from a
+ * shared queue as it finishes its last one, so faster servers end up sending
+ * more of the file.
+ * 
+ * Ranges are sent as frames of a length, a CRC32 and up to a block of data.
+ * Each verified block is recorded in a {@link TransferProgress} next to the
+ * part file, so a dropped connection only costs the block in flight, and a
+ * download that fails outright resumes from its verified blocks next time.
+ * Once every block is in, the whole file is checked against a digest from a
+ * server still holding the version before it's handed over.
+ * 
+ * Each range has its own deadline, and a server that runs past it or past
+ * the download giving up on it stops at the next block instead of being
+ * interrupted, since an interrupt would close the part file for every
+ * server writing to it.
+ * 
+ * @author nhydock
+ *
+ */
+class RangeDownload {
+
+    /**
+     * Size of the ranges the file is split into
+     */
+    static final long RANGE_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Size of the blocks in a range that are checksummed and recorded
+     */
+    static final int BLOCK_SIZE = 64 * 1024;
+
+    /**
+     * Size of a frame header, the block length and its CRC32
+     */
+    private static final int FRAME_HEADER = 8;
+
+    /**
+     * Most times the remaining ranges are handed out again after servers fail
+     */
+    private static final int MAX_ROUNDS = 3;
+
+    /**
+     * Times a server is asked for a range before giving up on it
+     */
+    private static final int RETRIES = 3;
+
+    /**
+     * Milliseconds to wait before the first retry, doubling each time
+     */
+    private static final long RETRY_DELAY = 500;
+
+    /**
+     * Milliseconds a server has to send a range before it's asked again
+     */
+    static final long RANGE_TIMEOUT = 2 * 60 * 1000;
+
+    /**
+     * File being downloaded
+     */
+    final String filename;
+
+    /**
+     * Size of the file
+     */
+    final long size;
+
+    /**
+     * Version being downloaded
+     */
+    final int version;
+
+    /**
+     * Port the ranges are fetched over
+     */
+    final DataPort data;
+
+    /**
+     * True to have the ranges sent compressed
+     */
+    final boolean compressed;
+
+    /**
+     * File the download is written to until it's complete
+     */
+    final Path part;
+
+    /**
+     * Blocks that have arrived and been verified
+     */
+    final TransferProgress progress;
+
+    /**
+     * Starts of the ranges still to be downloaded
+     */
+    final ConcurrentLinkedQueue<Long> ranges;
+
+    /**
+     * Servers that failed to send a range and aren't asked again
+     */
+    final Set<FileServer> failed;
+
+    /**
+     * Time after which servers stop sending at the next block, in
+     * milliseconds since the epoch
+     */
+    private volatile long stopAt;
+
+    /**
+     * Creates a download of a whole file, picking up any progress made by an
+     * earlier attempt at the same version
+     * 
+     * @param filename
+     * @param size
+     *            - size of the file on the servers
+     * @param version
+     *            - version being downloaded
+     * @param part
+     *            - file to write to
+     * @param data
+     *            - port to fetch the ranges over
+     * @param compressed
+     *            - true to have the ranges sent compressed
+     */
+    RangeDownload(String filename, long size, int version, Path part, DataPort data, boolean compressed) {
+        this.filename = filename;
+        this.size = size;
+        this.version = version;
+        this.data = data;
+        this.compressed = compressed;
+        this.part = part;
+        this.progress = new TransferProgress(TransferProgress.of(part), size, version, BLOCK_SIZE);
+        this.ranges = new ConcurrentLinkedQueue<Long>();
+        this.failed = Collections.newSetFromMap(new ConcurrentHashMap<FileServer, Boolean>());
+        for (long start = 0; start < size; start += RANGE_SIZE) {
+            if (next(start) < Math.min(size, start + RANGE_SIZE)) {
+                ranges.add(start);
+            }
+        }
+    }
+
+    /**
+     * Downloads the file into the part file
+     * 
+     * @param sources
+     *            - servers holding the file
+     * @param endpoints
+     *            - data port of each server
+     * @throws IOException
+     *             if some of the file couldn't be downloaded from any server,
+     *             in which case the verified blocks are kept for the next
+     *             attempt, or if the file doesn't match the version once
+     *             downloaded, in which case it's thrown away
+     */
+    void download(List<FileServer> sources, final Map<FileServer, String> endpoints) throws IOException {
+        boolean resume = progress.resumed() && part.toFile().length() == size;
+        if (resume) {
+            System.out.println("Resuming " + filename + " with " + ranges.size() + " ranges left");
+        } else {
+            // the progress is for a part file that's gone, so start over
+            progress.clear();
+            ranges.clear();
+            for (long start = 0; start < size; start += RANGE_SIZE) {
+                ranges.add(start);
+            }
+        }
+        try (final FileChannel output = resume ? FileChannel.open(part, StandardOpenOption.WRITE) : FileChannel.open(
+                part, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // blocks arrive out of order, so the file is given its full size
+            // before any are written
+            if (!resume && size > 0) {
+                output.write(ByteBuffer.allocate(1), size - 1);
+            }
+            for (int round = 0; round < MAX_ROUNDS && !ranges.isEmpty(); round++) {
+                List<FileServer> working = new ArrayList<FileServer>(sources);
+                working.removeAll(failed);
+                if (working.isEmpty()) {
+                    break;
+                }
+                // long enough to fetch every range one after another
+                long timeout = RANGE_TIMEOUT * (ranges.size() + 1);
+                stopAt = System.currentTimeMillis() + timeout;
+                List<Long> sent = FanOut.callWithoutInterrupt(working, new FanOut.PeerCall<Long>() {
+                    @Override
+                    public Long call(FileServer server) {
+                        return fetch(server, endpoints.get(server), output);
+                    }
+                }, timeout);
+                for (int i = 0; i < working.size(); i++) {
+                    System.out.println(endpoints.get(working.get(i)) + " sent " + sent.get(i) + " bytes of "
+                            + filename);
+                }
+            }
+            checkpoint(output);
+            if (!complete()) {
+                throw new IOException("No server could send the rest of " + filename);
+            }
+        }
+        verify(sources);
+        progress.delete();
+    }
+
+    /**
+     * Checks the downloaded file against the digest of a server still
+     * holding the version, throwing it away if they differ
+     * 
+     * @param sources
+     * @throws IOException
+     *             if no server could give a digest or the file doesn't match
+     */
+    private void verify(List<FileServer> sources) throws IOException {
+        String expected = "";
+        for (FileServer server : sources) {
+            try {
+                expected = server.getDigest(filename, version);
+            } catch (org.omg.CORBA.SystemException e) {
+                System.out.println("Unable to get the digest of " + filename + ": " + e);
+            }
+            if (!expected.isEmpty()) {
+                break;
+            }
+        }
+        if (expected.isEmpty()) {
+            throw new IOException("No server still has version " + version + " of " + filename + " to check it by");
+        }
+
+        String actual;
+        try (FileChannel input = FileChannel.open(part, StandardOpenOption.READ)) {
+            actual = digest(input);
+        }
+        if (!actual.equals(expected)) {
+            progress.delete();
+            Files.deleteIfExists(part);
+            throw new IOException("Downloaded copy of " + filename + " doesn't match version " + version);
+        }
+    }
+
+    /**
+     * Downloads ranges from a server until there are none left or the
+     * server keeps failing
+     * 
+     * @param server
+     * @param endpoint
+     *            - data port of the server
+     * @param output
+     *            - file being written
+     * @return number of bytes the server sent
+     */
+    long fetch(FileServer server, String endpoint, FileChannel output) {
+        long fetched = 0;
+        Long start;
+        while (!stopped() && (start = ranges.poll()) != null) {
+            long end = Math.min(size, start + RANGE_SIZE);
+            for (int attempt = 0;; attempt++) {
+                long from = next(start);
+                try {
+                    fetched += fetch(server, endpoint, output, from, end);
+                    break;
+                } catch (IOException | org.omg.CORBA.SystemException e) {
+                    System.out.println("Unable to get range " + from + "-" + end + " of " + filename + " from "
+                            + endpoint + ": " + e);
+                    if (stopped()) {
+                        ranges.add(start);
+                        return fetched;
+                    }
+                    if (attempt + 1 >= RETRIES || !sleep(RETRY_DELAY << attempt)) {
+                        ranges.add(start);
+                        failed.add(server);
+                        return fetched;
+                    }
+                }
+            }
+            try {
+                checkpoint(output);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * Downloads part of a range, recording each block as it's verified
+     * 
+     * @param server
+     * @param endpoint
+     * @param output
+     * @param start
+     *            - first byte wanted, always at the start of a block
+     * @param end
+     * @return number of bytes received
+     * @throws IOException
+     *             if the connection drops, a block fails its checksum or the
+     *             range runs past its deadline
+     */
+    private long fetch(FileServer server, String endpoint, FileChannel output, long start, long end)
+            throws IOException {
+        if (start >= end) {
+            return 0;
+        }
+        int token = server.openSocketRange(filename, version, start, end, compressed);
+        long deadline = System.currentTimeMillis() + RANGE_TIMEOUT;
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        CRC32 crc = new CRC32();
+        try (DataStream stream = data.open(endpoint, token)) {
+            stream.setDeadline(deadline);
+            DecompressingChannel inflating = compressed ? new DecompressingChannel(stream) : null;
+            ReadableByteChannel in = (inflating != null) ? inflating : stream;
+            try {
+                long position = start;
+                while (position < end) {
+                    if (stopped()) {
+                        throw new IOException("Gave up on the download of " + filename);
+                    } else if (System.currentTimeMillis() > deadline) {
+                        throw new IOException("Ran out of time for the range");
+                    }
+                    int expected = (int) Math.min(BLOCK_SIZE, end - position);
+                    header.clear();
+                    readFully(in, header);
+                    header.flip();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+                    if (length != expected) {
+                        throw new IOException("Expected a block of " + expected + " bytes at " + position + " but got "
+                                + length);
+                    }
+
+                    block.clear();
+                    block.limit(length);
+                    readFully(in, block);
+                    crc.reset();
+                    crc.update(block.array(), 0, length);
+                    if ((int) crc.getValue() != checksum) {
+                        throw new IOException("Block at " + position + " of " + filename + " failed its checksum");
+                    }
+
+                    block.flip();
+                    while (block.hasRemaining()) {
+                        output.write(block, position + block.position());
+                    }
+                    progress.mark(position / BLOCK_SIZE);
+                    position += length;
+                }
+                return position - start;
+            } finally {
+                if (inflating != null) {
+                    inflating.end();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds where a range still needs downloading from
+     * 
+     * @param start
+     *            - start of the range
+     * @return offset of the range's first unverified block, or the end of the
+     *         range if every block is verified
+     */
+    private long next(long start) {
+        long end = Math.min(size, start + RANGE_SIZE);
+        long position = start;
+        while (position < end && progress.done(position / BLOCK_SIZE)) {
+            position += BLOCK_SIZE;
+        }
+        return Math.min(position, end);
+    }
+
+    /**
+     * Checks if every block of the file has been verified
+     * 
+     * @return true if the download is complete
+     */
+    private boolean complete() {
+        for (long start = 0; start < size; start += RANGE_SIZE) {
+            if (next(start) < Math.min(size, start + RANGE_SIZE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks if servers still sending should stop
+     * 
+     * @return true once the download has given up on them
+     */
+    private boolean stopped() {
+        return System.currentTimeMillis() > stopAt;
+    }
+
+    /**
+     * Syncs the part file to disk and then records the blocks it holds
+     * 
+     * @param output
+     * @throws IOException
+     */
+    private void checkpoint(FileChannel output) throws IOException {
+        synchronized (progress) {
+            output.force(false);
+            progress.save();
+        }
+    }
+
+    /**
+     * Sends a range of a stored file as checksummed frames
+     * 
+     * @param store
+     * @param filename
+     * @param start
+     * @param end
+     * @param target
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    static long send(ReadableStore store, String filename, long start, long end, WritableByteChannel target)
+            throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        CRC32 crc = new CRC32();
+        long position = start;
+        while (position < end) {
+            block.clear();
+            block.limit((int) Math.min(BLOCK_SIZE, end - position));
+            while (block.hasRemaining()) {
+                if (store.read(filename, position + block.position(), block) < 0) {
+                    throw new EOFException(filename + " ends before " + end);
+                }
+            }
+            crc.reset();
+            crc.update(block.array(), 0, block.position());
+
+            header.clear();
+            header.putInt(block.position());
+            header.putInt((int) crc.getValue());
+            header.flip();
+            block.flip();
+            while (header.hasRemaining()) {
+                target.write(header);
+            }
+            while (block.hasRemaining()) {
+                target.write(block);
+            }
+            position += block.limit();
+        }
+        return position - start;
+    }
+
+    /**
+     * Works out the digest a whole file is checked by
+     * 
+     * @param store
+     * @param filename
+     * @return the digest in hex
+     * @throws IOException
+     */
+    static String digest(ReadableStore store, String filename) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        long size = store.size(filename);
+        long position = 0;
+        while (position < size) {
+            block.clear();
+            int read = store.read(filename, position, block);
+            if (read < 0) {
+                throw new EOFException(filename + " ends before " + size);
+            }
+            digest.update(block.array(), 0, read);
+            position += read;
+        }
+        return hex(digest);
+    }
+
+    /**
+     * Works out the digest of everything left in a channel
+     * 
+     * @param channel
+     * @return the digest in hex
+     * @throws IOException
+     */
+    private static String digest(ReadableByteChannel channel) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        while (channel.read(block) >= 0) {
+            digest.update(block.array(), 0, block.position());
+            block.clear();
+        }
+        return hex(digest);
+    }
+
+    /**
+     * Starts a digest
+     * 
+     * @return a SHA-256 digest
+     * @throws IOException
+     *             if the JVM has no SHA-256, which it's required to
+     */
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Finishes a digest
+     * 
+     * @param digest
+     * @return the digest in hex
+     */
+    private static String hex(MessageDigest digest) {
+        return String.format("%064x", new BigInteger(1, digest.digest()));
+    }
+
+    /**
+     * Fills a buffer from a channel
+     * 
+     * @throws EOFException
+     *             if the channel closes first
+     */
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed mid-block");
+            }
+        }
+    }
+
+    /**
+     * Waits before a retry
+     * 
+     * @param millis
+     * @return false if interrupted
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
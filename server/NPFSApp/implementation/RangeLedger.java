@@ -0,0 +1,194 @@
+package NPFSApp.implementation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers which range of a file each recent version replaced, so a
+ * session that opened an older version can still save as long as nothing
+ * saved since touched its range. Its range is moved along by however much
+ * the saves before it grew or shrank the file.
+ * 
+ * @author nhydock
+ *
+ */
+class RangeLedger {
+
+    /**
+     * Most versions of a file remembered
+     */
+    static final int HISTORY = 256;
+
+    /**
+     * A range of a file replaced by a save
+     */
+    private static class Edit {
+        final long start;
+        final long end;
+        final long length;
+
+        Edit(long start, long end, long length) {
+            this.start = start;
+            this.end = end;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The saves made to one file, by the version they made
+     */
+    private static class History extends LinkedHashMap<Integer, Edit> {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Set when the file was replaced some other way, so the next save
+         * starts the history over
+         */
+        volatile boolean stale;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Edit> eldest) {
+            return size() > HISTORY;
+        }
+    }
+
+    /**
+     * History of each file saved to
+     */
+    private final ConcurrentHashMap<String, History> files;
+
+    /**
+     * Creates an empty ledger
+     */
+    RangeLedger() {
+        this.files = new ConcurrentHashMap<String, History>();
+    }
+
+    /**
+     * Moves a range opened at an older version of a file to where it is in
+     * the current version. Should be called holding the file's write lock.
+     * 
+     * @param filename
+     * @param version
+     *            - version the range was opened at
+     * @param current
+     *            - current version of the file
+     * @param start
+     * @param end
+     * @return the range's new start and end, or null if a save since then
+     *         overlapped it or isn't known
+     */
+    long[] rebase(String filename, int version, int current, long start, long end) {
+        History history = history(filename);
+        if (history.stale) {
+            history.stale = false;
+            history.clear();
+        }
+        return move(history, version, current, start, end);
+    }
+
+    /**
+     * Finds where a range opened at an older version of a file is in the
+     * current version without changing anything, so it can be called holding
+     * only the file's read lock
+     * 
+     * @param filename
+     * @param version
+     *            - version the range was opened at
+     * @param current
+     *            - current version of the file
+     * @param start
+     * @param end
+     * @return the range's start and end now, or null if a save since then
+     *         overlapped it or isn't known, or the file was replaced
+     */
+    long[] locate(String filename, int version, int current, long start, long end) {
+        if (version == current) {
+            return new long[] { start, end };
+        }
+        History history = files.get(filename);
+        if (history == null || history.stale || current < version) {
+            return null;
+        }
+        return move(history, version, current, start, end);
+    }
+
+    /**
+     * Moves a range past the saves made since it was opened
+     * 
+     * @param history
+     * @param version
+     * @param current
+     * @param start
+     * @param end
+     * @return the moved range, or null if a save overlapped it or isn't known
+     */
+    private static long[] move(History history, int version, int current, long start, long end) {
+        if (version < 0 || current - version > HISTORY) {
+            return null;
+        }
+        for (int v = version + 1; v <= current; v++) {
+            Edit edit = history.get(v);
+            if (edit == null) {
+                return null;
+            }
+            if (edit.end <= start && edit.start < start) {
+                long shift = edit.length - (edit.end - edit.start);
+                start += shift;
+                end += shift;
+            } else if (edit.start < end || (edit.start == start && start == end)) {
+                return null;
+            }
+        }
+        return new long[] { start, end };
+    }
+
+    /**
+     * Records the range a save replaced. Should be called holding the
+     * file's write lock.
+     * 
+     * @param filename
+     * @param version
+     *            - version the save made
+     * @param start
+     * @param end
+     * @param length
+     *            - number of bytes the range was replaced with
+     */
+    void record(String filename, int version, long start, long end, long length) {
+        history(filename).put(version, new Edit(start, end, length));
+    }
+
+    /**
+     * Forgets the saves made to a file because it was replaced some other
+     * way, so ranges opened before then can't be moved past it. Doesn't
+     * wait for a save in progress to finish.
+     * 
+     * @param filename
+     */
+    void forget(String filename) {
+        History history = files.get(filename);
+        if (history != null) {
+            history.stale = true;
+        }
+    }
+
+    /**
+     * Gets the history of a file, creating it if it's never been saved to
+     * 
+     * @param filename
+     * @return the file's history
+     */
+    private History history(String filename) {
+        History history = files.get(filename);
+        if (history == null) {
+            History created = new History();
+            history = files.putIfAbsent(filename, created);
+            if (history == null) {
+                history = created;
+            }
+        }
+        return history;
+    }
+}
@@ -0,0 +1,53 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The reading half of a {@link FileStore}, which is all that sending a file
+ * to another server needs.
+ * 
+ * @author nhydock
+ *
+ */
+public interface ReadableStore {
+
+    /**
+     * Gets the size in bytes of a file's contents
+     * 
+     * @param filename
+     * @return number of bytes in the file
+     */
+    long size(String filename);
+
+    /**
+     * Reads bytes of a file starting at a position
+     * 
+     * @param filename
+     * @param position
+     *            - offset into the file to read from
+     * @param dst
+     *            - buffer to fill
+     * @return number of bytes read, or -1 if the position is past the end
+     * @throws IOException
+     */
+    int read(String filename, long position, ByteBuffer dst) throws IOException;
+
+    /**
+     * Sends a section of a file to a channel, avoiding the heap where the
+     * layout allows it
+     * 
+     * @param filename
+     * @param position
+     *            - offset into the file to start at
+     * @param count
+     *            - most bytes to send
+     * @param target
+     *            - channel to write to
+     * @return number of bytes sent
+     * @throws IOException
+     */
+    long transferTo(String filename, long position, long count, WritableByteChannel target)
+            throws IOException;
+}
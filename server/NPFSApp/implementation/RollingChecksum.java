@@ -0,0 +1,74 @@
+package NPFSApp.implementation;
+
+/**
+ * Weak checksum over a fixed size window of bytes that can be slid forward a
+ * byte at a time in constant time, the same one rsync uses for finding
+ * matching blocks at any offset.
+ * 
+ * @author nhydock
+ *
+ */
+class RollingChecksum {
+
+    /**
+     * Size of the window
+     */
+    final int length;
+
+    /**
+     * Sum of the bytes in the window, and sum of those sums
+     */
+    private int a, b;
+
+    /**
+     * Creates a checksum over a window of bytes
+     * 
+     * @param data
+     * @param offset
+     *            - start of the window
+     * @param length
+     *            - size of the window
+     */
+    RollingChecksum(byte[] data, int offset, int length) {
+        this.length = length;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+    }
+
+    /**
+     * Slides the window forward by one byte
+     * 
+     * @param out
+     *            - byte leaving the front of the window
+     * @param in
+     *            - byte entering the back of the window
+     */
+    void roll(byte out, byte in) {
+        a += (in & 0xff) - (out & 0xff);
+        b += a - length * (out & 0xff);
+    }
+
+    /**
+     * Gets the checksum of the current window
+     * 
+     * @return checksum
+     */
+    int value() {
+        return (b << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Computes the checksum of a block in one go
+     * 
+     * @param data
+     * @param offset
+     * @param length
+     * @return checksum
+     */
+    static int of(byte[] data, int offset, int length) {
+        return new RollingChecksum(data, offset, length).value();
+    }
+}
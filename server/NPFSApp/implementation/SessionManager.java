@@ -0,0 +1,356 @@
+package NPFSApp.implementation;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out session ids and keeps track of what each session has open. A
+ * session starts with a single handle under its own id and can open more,
+ * each with a file of its own. Sessions that go unused for too long are
+ * closed by a timer wheel, which only looks at the sessions due in the
+ * current tick, so using a session never has to reschedule it.
+ * 
+ * @author nhydock
+ * 
+ * @param <T>
+ *            - what a handle has open
+ */
+class SessionManager<T> {
+
+    /**
+     * Told about what a handle had open when it's closed
+     * 
+     * @param <T>
+     */
+    interface Listener<T> {
+        void closed(T open);
+    }
+
+    /**
+     * Milliseconds a session can go unused before it's closed
+     */
+    static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+    /**
+     * Milliseconds between turns of the wheel
+     */
+    static final long TICK = 1000;
+
+    /**
+     * A client's connection to the server
+     */
+    private static class Session {
+        final int id;
+
+        /**
+         * When the session was last used
+         */
+        volatile long lastUsed;
+
+        /**
+         * Ids of the handles opened on top of the session's own, or null if
+         * it hasn't opened any
+         */
+        volatile Set<Integer> extra;
+
+        volatile boolean closed;
+
+        Session(int id, long now) {
+            this.id = id;
+            this.lastUsed = now;
+        }
+    }
+
+    /**
+     * Something a session can have a file open on
+     */
+    private static class Handle<T> {
+        final Session session;
+        volatile T open;
+
+        Handle(Session session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * Source of new ids
+     */
+    private final AtomicInteger ids;
+
+    /**
+     * Every open handle by id, sessions included under their own id
+     */
+    private final ConcurrentHashMap<Integer, Handle<T>> handles;
+
+    /**
+     * Sessions by the tick they're next due to be checked in
+     */
+    private final ConcurrentLinkedQueue<Session>[] wheel;
+
+    /**
+     * Tick the wheel is on
+     */
+    private volatile long current;
+
+    /**
+     * Milliseconds a session can go unused
+     */
+    private final long ttl;
+
+    /**
+     * Told about anything left open when a handle is closed
+     */
+    private final Listener<T> listener;
+
+    /**
+     * Turns the wheel
+     */
+    private final ScheduledExecutorService expiry;
+
+    /**
+     * Creates an empty session table
+     * 
+     * @param ttl
+     *            - milliseconds a session can go unused before it's closed
+     * @param listener
+     *            - told about anything left open when a handle is closed
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    SessionManager(long ttl, Listener<T> listener) {
+        this.ids = new AtomicInteger();
+        this.handles = new ConcurrentHashMap<Integer, Handle<T>>();
+        this.ttl = ttl;
+        this.listener = listener;
+        this.wheel = new ConcurrentLinkedQueue[(int) (ttl / TICK) + 2];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<Session>();
+        }
+        this.current = System.currentTimeMillis() / TICK;
+        this.expiry = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-expiry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.expiry.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, TICK, TICK, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts a new session
+     * 
+     * @return id of the session
+     */
+    int create() {
+        long now = System.currentTimeMillis();
+        while (true) {
+            // ids wrap around rather than going negative, skipping any still
+            // in use
+            int id = ids.getAndIncrement() & Integer.MAX_VALUE;
+            Session session = new Session(id, now);
+            if (handles.putIfAbsent(id, new Handle<T>(session)) == null) {
+                schedule(session, now + ttl);
+                return id;
+            }
+        }
+    }
+
+    /**
+     * Opens another handle on a session
+     * 
+     * @param sessionID
+     * @return id of the handle, or -1 if the session isn't open
+     */
+    int openHandle(int sessionID) {
+        Handle<T> owner = handles.get(sessionID);
+        if (owner == null || owner.session.id != sessionID) {
+            return -1;
+        }
+        Session session = owner.session;
+        session.lastUsed = System.currentTimeMillis();
+        synchronized (session) {
+            if (session.closed) {
+                return -1;
+            }
+            if (session.extra == null) {
+                session.extra = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+            }
+            while (true) {
+                int id = ids.getAndIncrement() & Integer.MAX_VALUE;
+                if (handles.putIfAbsent(id, new Handle<T>(session)) == null) {
+                    session.extra.add(id);
+                    return id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets what a handle has open, counting as use of its session
+     * 
+     * @param id
+     *            - a session or handle id
+     * @return what's open, or null if nothing is or the handle isn't open
+     */
+    T get(int id) {
+        Handle<T> handle = touch(id);
+        return (handle == null) ? null : handle.open;
+    }
+
+    /**
+     * Sets what a handle has open, counting as use of its session. Whatever
+     * it had open before is closed.
+     * 
+     * @param id
+     *            - a session or handle id
+     * @param open
+     * @return false if the handle isn't open
+     */
+    boolean put(int id, T open) {
+        Handle<T> handle = touch(id);
+        if (handle == null) {
+            return false;
+        }
+        T previous;
+        synchronized (handle) {
+            previous = handle.open;
+            handle.open = open;
+        }
+        if (previous != null && previous != open) {
+            listener.closed(previous);
+        }
+        return true;
+    }
+
+    /**
+     * Closes a handle, or a whole session along with its handles if given
+     * the session's id
+     * 
+     * @param id
+     */
+    void close(int id) {
+        Handle<T> handle = handles.get(id);
+        if (handle == null) {
+            return;
+        }
+        Session session = handle.session;
+        if (session.id != id) {
+            release(id);
+            Set<Integer> extra = session.extra;
+            if (extra != null) {
+                extra.remove(id);
+            }
+            return;
+        }
+        synchronized (session) {
+            session.closed = true;
+        }
+        release(id);
+        Set<Integer> extra = session.extra;
+        if (extra != null) {
+            for (Integer other : extra) {
+                release(other);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of open handles, sessions included
+     * 
+     * @return number of handles
+     */
+    int size() {
+        return handles.size();
+    }
+
+    /**
+     * Finds a handle and marks its session as used
+     * 
+     * @param id
+     * @return the handle, or null if it isn't open
+     */
+    private Handle<T> touch(int id) {
+        Handle<T> handle = handles.get(id);
+        if (handle != null) {
+            handle.session.lastUsed = System.currentTimeMillis();
+        }
+        return handle;
+    }
+
+    /**
+     * Removes a handle, closing whatever it had open
+     * 
+     * @param id
+     */
+    private void release(int id) {
+        Handle<T> handle = handles.remove(id);
+        if (handle == null) {
+            return;
+        }
+        T open;
+        synchronized (handle) {
+            open = handle.open;
+            handle.open = null;
+        }
+        if (open != null) {
+            listener.closed(open);
+        }
+    }
+
+    /**
+     * Puts a session in the slot of the tick it's due in
+     * 
+     * @param session
+     * @param due
+     *            - when the session should next be checked
+     */
+    private void schedule(Session session, long due) {
+        long tick = Math.max(due / TICK, current + 1);
+        wheel[(int) (tick % wheel.length)].add(session);
+    }
+
+    /**
+     * Moves the wheel on to the current time, closing the sessions that have
+     * gone unused for too long and pushing back the ones that have been used
+     * since they were scheduled
+     */
+    private void turn() {
+        long now = System.currentTimeMillis();
+        long target = now / TICK;
+        while (current < target) {
+            current++;
+            ConcurrentLinkedQueue<Session> slot = wheel[(int) (current % wheel.length)];
+            // only the sessions already in the slot are due, anything added
+            // while going through it belongs to a later turn
+            for (int due = slot.size(); due > 0; due--) {
+                Session session = slot.poll();
+                if (session == null) {
+                    break;
+                }
+                if (session.closed) {
+                    continue;
+                }
+                long expires = session.lastUsed + ttl;
+                if (expires <= now) {
+                    close(session.id);
+                } else {
+                    schedule(session, expires);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package NPFSApp.implementation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel that passes along everything read from it to a second channel as
+ * it's read, used for forwarding a transfer down a replication chain while
+ * it's being applied. If the second channel fails, forwarding stops but
+ * reading carries on.
+ * 
+ * @author nhydock
+ *
+ */
+class TeeChannel implements ReadableByteChannel {
+
+    /**
+     * Channel being read from
+     */
+    final ReadableByteChannel in;
+
+    /**
+     * Channel getting a copy of everything read, or null once it has failed
+     */
+    WritableByteChannel out;
+
+    /**
+     * Creates a tee between two channels
+     * 
+     * @param in
+     * @param out
+     */
+    TeeChannel(ReadableByteChannel in, WritableByteChannel out) {
+        this.in = in;
+        this.out = out;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        int read = in.read(dst);
+        if (read > 0 && out != null) {
+            ByteBuffer copy = dst.duplicate();
+            copy.limit(dst.position());
+            copy.position(start);
+            try {
+                while (copy.hasRemaining()) {
+                    out.write(copy);
+                }
+            } catch (IOException e) {
+                System.out.println("Stopped forwarding: " + e);
+                out = null;
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return in.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,166 @@
+package NPFSApp.implementation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+
+/**
+ * Record of which blocks of a download have arrived and been verified, kept
+ * next to the part file so an interrupted download can pick up where it left
+ * off. It only applies to the size and version of the file it was started
+ * for.
+ * 
+ * @author nhydock
+ *
+ */
+class TransferProgress {
+
+    /**
+     * Marks the start of a progress file
+     */
+    private static final long MAGIC = 0x4e50465350524f47L;
+
+    /**
+     * File the progress is kept in
+     */
+    final File file;
+
+    /**
+     * Size of the file being downloaded
+     */
+    final long size;
+
+    /**
+     * Version of the file being downloaded
+     */
+    final int version;
+
+    /**
+     * Size of each verified block
+     */
+    final int blockSize;
+
+    /**
+     * Blocks that have been verified
+     */
+    private final BitSet done;
+
+    /**
+     * Loads the progress of a download, or starts over if the progress on
+     * disk is for a different size or version of the file
+     * 
+     * @param file
+     * @param size
+     * @param version
+     * @param blockSize
+     */
+    TransferProgress(File file, long size, int version, int blockSize) {
+        this.file = file;
+        this.size = size;
+        this.version = version;
+        this.blockSize = blockSize;
+        this.done = load();
+    }
+
+    /**
+     * Checks if any of the file has been downloaded before
+     * 
+     * @return true if at least one block was verified
+     */
+    synchronized boolean resumed() {
+        return !done.isEmpty();
+    }
+
+    /**
+     * Checks if a block has been verified
+     * 
+     * @param block
+     * @return true if the block doesn't need downloading again
+     */
+    synchronized boolean done(long block) {
+        return done.get((int) block);
+    }
+
+    /**
+     * Records a block as verified
+     * 
+     * @param block
+     */
+    synchronized void mark(long block) {
+        done.set((int) block);
+    }
+
+    /**
+     * Forgets every verified block
+     */
+    synchronized void clear() {
+        done.clear();
+    }
+
+    /**
+     * Writes the progress to disk. The blocks it lists must already be on
+     * disk themselves.
+     * 
+     * @throws IOException
+     */
+    synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+            out.writeLong(MAGIC);
+            out.writeLong(size);
+            out.writeInt(version);
+            out.writeInt(blockSize);
+            byte[] bits = done.toByteArray();
+            out.writeInt(bits.length);
+            out.write(bits);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Removes the progress file once the download is complete
+     */
+    void delete() {
+        file.delete();
+    }
+
+    /**
+     * Reads the verified blocks from disk
+     * 
+     * @return the blocks, empty if there's no usable progress file
+     */
+    private BitSet load() {
+        if (!file.exists()) {
+            return new BitSet();
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readLong() != MAGIC || in.readLong() != size || in.readInt() != version
+                    || in.readInt() != blockSize) {
+                return new BitSet();
+            }
+            byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            return BitSet.valueOf(bits);
+        } catch (IOException e) {
+            System.out.println("Ignoring unreadable progress in " + file + ": " + e);
+            return new BitSet();
+        }
+    }
+
+    /**
+     * Path of the progress file kept for a part file
+     * 
+     * @param part
+     * @return progress file
+     */
+    static File of(Path part) {
+        return new File(part.toString() + ".progress");
+    }
+}
@@ -1,3 +1,5 @@
+import java.io.File;
+
 import org.omg.CORBA.ORB;
 import org.omg.CosNaming.NameComponent;
 import org.omg.CosNaming.NamingContextExt;
@@ -5,7 +7,12 @@ import org.omg.CosNaming.NamingContextExtHelper;
 import org.omg.PortableServer.POA;
 import org.omg.PortableServer.POAHelper;
 
+import NPFSApp.implementation.BlockCache;
+import NPFSApp.implementation.CompressedFileStore;
+import NPFSApp.implementation.FileStore;
+import NPFSApp.implementation.FlatFileStore;
 import NPFSApp.implementation.LocalFileServer;
+import NPFSApp.implementation.PieceTableStore;
 
 /**
  * Server launcher
@@ -30,12 +37,49 @@ public class Runner {
 
             // create servant and register it with the ORB
             int port = 1050;
+            int dataPort = 0;
+            int cacheSize = BlockCache.DEFAULT_CAPACITY;
+            boolean compress = false;
+            FileStore store = new FlatFileStore(new File("."));
             for (int i = 0; i < args.length; i++) {
                 if (args[i].equals("-port")) {
                     port = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-dataport")) {
+                    dataPort = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("-cache")) {
+                    // megabytes of file blocks to keep in memory
+                    long megabytes = Long.parseLong(args[i + 1]);
+                    if (megabytes < 0 || megabytes > BlockCache.MAX_CAPACITY / (1024 * 1024)) {
+                        System.out.println("-cache must be between 0 and " + BlockCache.MAX_CAPACITY / (1024 * 1024)
+                                + " megabytes");
+                        return;
+                    }
+                    cacheSize = (int) (megabytes * 1024 * 1024);
+                } else if (args[i].equals("-compress")) {
+                    // whether file data moved between servers is compressed,
+                    // off unless asked for
+                    compress = args[i + 1].equals("on");
+                } else if (args[i].equals("-storage") && args[i + 1].equals("piece")) {
+                    int threshold = PieceTableStore.DEFAULT_COMPACT_THRESHOLD;
+                    if (i + 2 < args.length && !args[i + 2].startsWith("-")) {
+                        threshold = Integer.parseInt(args[i + 2]);
+                    }
+                    store = new PieceTableStore(new File("."), threshold);
+                } else if (args[i].equals("-storage") && args[i + 1].equals("compressed")) {
+                    // files kept on disk as independently compressed blocks
+                    store = new CompressedFileStore(new File("."));
                 }
             }
-            final LocalFileServer server = new LocalFileServer(port);
+            final BlockCache cache = new BlockCache(cacheSize);
+            final LocalFileServer server = new LocalFileServer(port, dataPort, store, cache, compress);
+
+            // report how well the cache did once the server is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread("cache-stats") {
+                @Override
+                public void run() {
+                    System.out.println("Block cache: " + cache.hits() + " hits, " + cache.misses() + " misses");
+                }
+            });
 
             // get object reference from the servant
             org.omg.CORBA.Object ref = rootpoa.servant_to_reference(server);
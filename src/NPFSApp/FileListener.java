@@ -0,0 +1,13 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/FileListener.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+public interface FileListener extends FileListenerOperations, org.omg.CORBA.Object, org.omg.CORBA.portable.IDLEntity 
+{
+} // interface FileListener
@@ -0,0 +1,85 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/FileListenerHelper.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+abstract public class FileListenerHelper
+{
+  private static String  _id = "IDL:NPFSApp/FileListener:1.0";
+
+  public static void insert (org.omg.CORBA.Any a, NPFSApp.FileListener that)
+  {
+    org.omg.CORBA.portable.OutputStream out = a.create_output_stream ();
+    a.type (type ());
+    write (out, that);
+    a.read_value (out.create_input_stream (), type ());
+  }
+
+  public static NPFSApp.FileListener extract (org.omg.CORBA.Any a)
+  {
+    return read (a.create_input_stream ());
+  }
+
+  private static org.omg.CORBA.TypeCode __typeCode = null;
+  synchronized public static org.omg.CORBA.TypeCode type ()
+  {
+    if (__typeCode == null)
+    {
+      __typeCode = org.omg.CORBA.ORB.init ().create_interface_tc (NPFSApp.FileListenerHelper.id (), "FileListener");
+    }
+    return __typeCode;
+  }
+
+  public static String id ()
+  {
+    return _id;
+  }
+
+  public static NPFSApp.FileListener read (org.omg.CORBA.portable.InputStream istream)
+  {
+    return narrow (istream.read_Object (_FileListenerStub.class));
+  }
+
+  public static void write (org.omg.CORBA.portable.OutputStream ostream, NPFSApp.FileListener value)
+  {
+    ostream.write_Object ((org.omg.CORBA.Object) value);
+  }
+
+  public static NPFSApp.FileListener narrow (org.omg.CORBA.Object obj)
+  {
+    if (obj == null)
+      return null;
+    else if (obj instanceof NPFSApp.FileListener)
+      return (NPFSApp.FileListener)obj;
+    else if (!obj._is_a (id ()))
+      throw new org.omg.CORBA.BAD_PARAM ();
+    else
+    {
+      org.omg.CORBA.portable.Delegate delegate = ((org.omg.CORBA.portable.ObjectImpl)obj)._get_delegate ();
+      NPFSApp._FileListenerStub stub = new NPFSApp._FileListenerStub ();
+      stub._set_delegate(delegate);
+      return stub;
+    }
+  }
+
+  public static NPFSApp.FileListener unchecked_narrow (org.omg.CORBA.Object obj)
+  {
+    if (obj == null)
+      return null;
+    else if (obj instanceof NPFSApp.FileListener)
+      return (NPFSApp.FileListener)obj;
+    else
+    {
+      org.omg.CORBA.portable.Delegate delegate = ((org.omg.CORBA.portable.ObjectImpl)obj)._get_delegate ();
+      NPFSApp._FileListenerStub stub = new NPFSApp._FileListenerStub ();
+      stub._set_delegate(delegate);
+      return stub;
+    }
+  }
+
+}
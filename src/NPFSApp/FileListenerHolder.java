@@ -0,0 +1,38 @@
+package NPFSApp;
+
+/**
+* NPFSApp/FileListenerHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+public final class FileListenerHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.FileListener value = null;
+
+  public FileListenerHolder ()
+  {
+  }
+
+  public FileListenerHolder (NPFSApp.FileListener initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.FileListenerHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.FileListenerHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.FileListenerHelper.type ();
+  }
+
+}
@@ -0,0 +1,14 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/FileListenerOperations.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+public interface FileListenerOperations 
+{
+  void invalidate (String filename, int version);
+} // interface FileListenerOperations
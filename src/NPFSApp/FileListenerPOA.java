@@ -0,0 +1,72 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/FileListenerPOA.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+public abstract class FileListenerPOA extends org.omg.PortableServer.Servant
+ implements NPFSApp.FileListenerOperations, org.omg.CORBA.portable.InvokeHandler
+{
+
+  // Constructors
+
+  private static java.util.Hashtable _methods = new java.util.Hashtable ();
+  static
+  {
+    _methods.put ("invalidate", new java.lang.Integer (0));
+  }
+
+  public org.omg.CORBA.portable.OutputStream _invoke (String $method,
+                                org.omg.CORBA.portable.InputStream in,
+                                org.omg.CORBA.portable.ResponseHandler $rh)
+  {
+    org.omg.CORBA.portable.OutputStream out = null;
+    java.lang.Integer __method = (java.lang.Integer)_methods.get ($method);
+    if (__method == null)
+      throw new org.omg.CORBA.BAD_OPERATION (0, org.omg.CORBA.CompletionStatus.COMPLETED_MAYBE);
+
+    switch (__method.intValue ())
+    {
+       case 0:  // NPFSApp/FileListener/invalidate
+       {
+         String filename = in.read_string ();
+         int version = in.read_long ();
+         this.invalidate (filename, version);
+         out = $rh.createReply();
+         break;
+       }
+
+       default:
+         throw new org.omg.CORBA.BAD_OPERATION (0, org.omg.CORBA.CompletionStatus.COMPLETED_MAYBE);
+    }
+
+    return out;
+  } // _invoke
+
+  // Type-specific CORBA::Object operations
+  private static String[] __ids = {
+    "IDL:NPFSApp/FileListener:1.0"};
+
+  public String[] _all_interfaces (org.omg.PortableServer.POA poa, byte[] objectId)
+  {
+    return (String[])__ids.clone ();
+  }
+
+  public FileListener _this() 
+  {
+    return FileListenerHelper.narrow(
+    super._this_object());
+  }
+
+  public FileListener _this(org.omg.CORBA.ORB orb) 
+  {
+    return FileListenerHelper.narrow(
+    super._this_object(orb));
+  }
+
+
+} // class FileListenerPOA
@@ -5,9 +5,9 @@ package NPFSApp;
 * NPFSApp/FileServer.java .
 * Generated by the IDL-to-Java compiler (portable), version "3.2"
 * from npfs.idl
-* Thursday, December 11, 2014 11:04:05 AM EST
+* Sunday, October 18, 2026 5:22:37 AM UTC
 */
 
-public interface FileServer extends FileServerOperations, org.omg.CORBA.Object, org.omg.CORBA.portable.IDLEntity 
+public interface FileServer extends FileServerOperations, NPFSApp.FileListener, org.omg.CORBA.portable.IDLEntity 
 {
 } // interface FileServer
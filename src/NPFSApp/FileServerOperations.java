@@ -5,15 +5,20 @@ package NPFSApp;
 * NPFSApp/FileServerOperations.java .
 * Generated by the IDL-to-Java compiler (portable), version "3.2"
 * from npfs.idl
-* Thursday, December 11, 2014 11:04:05 AM EST
+* Sunday, October 18, 2026 6:23:28 AM UTC
 */
 
-public interface FileServerOperations 
+public interface FileServerOperations  extends NPFSApp.FileListenerOperations
 {
   boolean getFile (String filename);
   byte[] openFile (String filename, long start, long end, int sessionID);
   long getFileSize (String filename);
   boolean closeFile (byte[] data, int sessionID);
+  long openStream (String filename, long start, long end, int sessionID);
+  byte[] readChunk (int sessionID, int maxLength);
+  void writeChunk (byte[] data, int sessionID);
+  boolean commit (int sessionID);
+  boolean reopenFile (String filename, long start, long end, int sessionID, int version);
   String[] getAllFiles ();
   String[] myFiles ();
   boolean hasFile (String filename);
@@ -22,9 +27,22 @@ public interface FileServerOperations
   String[] getConnectedServers ();
   void addServer (NPFSApp.FileServer server);
   int getSessionID ();
+  int openHandle (int sessionID);
+  void closeSession (int sessionID);
   boolean checkVersion (String filename, int version);
   int getVersion (String filename);
   void purgeFile (String filename);
-  int openSocketFile (String filename);
-  void closeSocket (int port);
+  NPFSApp.fileInfo[] queryFiles (String[] filenames);
+  int openSocketFile (String filename, boolean compressed);
+  void closeSocket (int token);
+  int openSocketRange (String filename, int version, long start, long end, boolean compressed);
+  int openSocketDelta (String filename, int version, int blockSize, NPFSApp.blockSum[] sums, boolean compressed);
+  String getDigest (String filename, int version);
+  boolean refreshFile (String filename);
+  NPFSApp.blockSum[] getBlockSums (String filename, int blockSize);
+  int openSocketChain (String filename, int version, int blockSize, NPFSApp.chainLink[] next, NPFSApp.FileListener origin, boolean compressed);
+  NPFSApp.catalogEntry[] getCatalog ();
+  void catalogDelta (String host, long batch, NPFSApp.catalogEntry[] delta);
+  NPFSApp.lease acquireLease (String filename, NPFSApp.FileListener holder);
+  void releaseLease (String filename, NPFSApp.FileListener holder);
 } // interface FileServerOperations
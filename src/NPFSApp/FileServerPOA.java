@@ -5,7 +5,7 @@ package NPFSApp;
 * NPFSApp/FileServerPOA.java .
 * Generated by the IDL-to-Java compiler (portable), version "3.2"
 * from npfs.idl
-* Thursday, December 11, 2014 11:04:05 AM EST
+* Sunday, October 18, 2026 6:23:28 AM UTC
 */
 
 public abstract class FileServerPOA extends org.omg.PortableServer.Servant
@@ -21,19 +21,38 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
     _methods.put ("openFile", new java.lang.Integer (1));
     _methods.put ("getFileSize", new java.lang.Integer (2));
     _methods.put ("closeFile", new java.lang.Integer (3));
-    _methods.put ("getAllFiles", new java.lang.Integer (4));
-    _methods.put ("myFiles", new java.lang.Integer (5));
-    _methods.put ("hasFile", new java.lang.Integer (6));
-    _methods.put ("getIpAddress", new java.lang.Integer (7));
-    _methods.put ("testResponse", new java.lang.Integer (8));
-    _methods.put ("getConnectedServers", new java.lang.Integer (9));
-    _methods.put ("addServer", new java.lang.Integer (10));
-    _methods.put ("getSessionID", new java.lang.Integer (11));
-    _methods.put ("checkVersion", new java.lang.Integer (12));
-    _methods.put ("getVersion", new java.lang.Integer (13));
-    _methods.put ("purgeFile", new java.lang.Integer (14));
-    _methods.put ("openSocketFile", new java.lang.Integer (15));
-    _methods.put ("closeSocket", new java.lang.Integer (16));
+    _methods.put ("openStream", new java.lang.Integer (4));
+    _methods.put ("readChunk", new java.lang.Integer (5));
+    _methods.put ("writeChunk", new java.lang.Integer (6));
+    _methods.put ("commit", new java.lang.Integer (7));
+    _methods.put ("reopenFile", new java.lang.Integer (8));
+    _methods.put ("getAllFiles", new java.lang.Integer (9));
+    _methods.put ("myFiles", new java.lang.Integer (10));
+    _methods.put ("hasFile", new java.lang.Integer (11));
+    _methods.put ("getIpAddress", new java.lang.Integer (12));
+    _methods.put ("testResponse", new java.lang.Integer (13));
+    _methods.put ("getConnectedServers", new java.lang.Integer (14));
+    _methods.put ("addServer", new java.lang.Integer (15));
+    _methods.put ("getSessionID", new java.lang.Integer (16));
+    _methods.put ("openHandle", new java.lang.Integer (17));
+    _methods.put ("closeSession", new java.lang.Integer (18));
+    _methods.put ("checkVersion", new java.lang.Integer (19));
+    _methods.put ("getVersion", new java.lang.Integer (20));
+    _methods.put ("purgeFile", new java.lang.Integer (21));
+    _methods.put ("queryFiles", new java.lang.Integer (22));
+    _methods.put ("openSocketFile", new java.lang.Integer (23));
+    _methods.put ("closeSocket", new java.lang.Integer (24));
+    _methods.put ("openSocketRange", new java.lang.Integer (25));
+    _methods.put ("openSocketDelta", new java.lang.Integer (26));
+    _methods.put ("getDigest", new java.lang.Integer (27));
+    _methods.put ("refreshFile", new java.lang.Integer (28));
+    _methods.put ("getBlockSums", new java.lang.Integer (29));
+    _methods.put ("openSocketChain", new java.lang.Integer (30));
+    _methods.put ("getCatalog", new java.lang.Integer (31));
+    _methods.put ("catalogDelta", new java.lang.Integer (32));
+    _methods.put ("acquireLease", new java.lang.Integer (33));
+    _methods.put ("releaseLease", new java.lang.Integer (34));
+    _methods.put ("invalidate", new java.lang.Integer (35));
   }
 
   public org.omg.CORBA.portable.OutputStream _invoke (String $method,
@@ -91,7 +110,64 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 4:  // NPFSApp/FileServer/getAllFiles
+       case 4:  // NPFSApp/FileServer/openStream
+       {
+         String filename = in.read_string ();
+         long start = in.read_longlong ();
+         long end = in.read_longlong ();
+         int sessionID = in.read_long ();
+         long $result = (long)0;
+         $result = this.openStream (filename, start, end, sessionID);
+         out = $rh.createReply();
+         out.write_longlong ($result);
+         break;
+       }
+
+       case 5:  // NPFSApp/FileServer/readChunk
+       {
+         int sessionID = in.read_long ();
+         int maxLength = in.read_long ();
+         byte $result[] = null;
+         $result = this.readChunk (sessionID, maxLength);
+         out = $rh.createReply();
+         NPFSApp.dataBufferHelper.write (out, $result);
+         break;
+       }
+
+       case 6:  // NPFSApp/FileServer/writeChunk
+       {
+         byte data[] = NPFSApp.dataBufferHelper.read (in);
+         int sessionID = in.read_long ();
+         this.writeChunk (data, sessionID);
+         out = $rh.createReply();
+         break;
+       }
+
+       case 7:  // NPFSApp/FileServer/commit
+       {
+         int sessionID = in.read_long ();
+         boolean $result = false;
+         $result = this.commit (sessionID);
+         out = $rh.createReply();
+         out.write_boolean ($result);
+         break;
+       }
+
+       case 8:  // NPFSApp/FileServer/reopenFile
+       {
+         String filename = in.read_string ();
+         long start = in.read_longlong ();
+         long end = in.read_longlong ();
+         int sessionID = in.read_long ();
+         int version = in.read_long ();
+         boolean $result = false;
+         $result = this.reopenFile (filename, start, end, sessionID, version);
+         out = $rh.createReply();
+         out.write_boolean ($result);
+         break;
+       }
+
+       case 9:  // NPFSApp/FileServer/getAllFiles
        {
          String $result[] = null;
          $result = this.getAllFiles ();
@@ -100,7 +176,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 5:  // NPFSApp/FileServer/myFiles
+       case 10:  // NPFSApp/FileServer/myFiles
        {
          String $result[] = null;
          $result = this.myFiles ();
@@ -109,7 +185,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 6:  // NPFSApp/FileServer/hasFile
+       case 11:  // NPFSApp/FileServer/hasFile
        {
          String filename = in.read_string ();
          boolean $result = false;
@@ -119,7 +195,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 7:  // NPFSApp/FileServer/getIpAddress
+       case 12:  // NPFSApp/FileServer/getIpAddress
        {
          String $result = null;
          $result = this.getIpAddress ();
@@ -128,7 +204,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 8:  // NPFSApp/FileServer/testResponse
+       case 13:  // NPFSApp/FileServer/testResponse
        {
          boolean $result = false;
          $result = this.testResponse ();
@@ -137,7 +213,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 9:  // NPFSApp/FileServer/getConnectedServers
+       case 14:  // NPFSApp/FileServer/getConnectedServers
        {
          String $result[] = null;
          $result = this.getConnectedServers ();
@@ -146,7 +222,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 10:  // NPFSApp/FileServer/addServer
+       case 15:  // NPFSApp/FileServer/addServer
        {
          NPFSApp.FileServer server = NPFSApp.FileServerHelper.read (in);
          this.addServer (server);
@@ -154,7 +230,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 11:  // NPFSApp/FileServer/getSessionID
+       case 16:  // NPFSApp/FileServer/getSessionID
        {
          int $result = (int)0;
          $result = this.getSessionID ();
@@ -163,7 +239,25 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 12:  // NPFSApp/FileServer/checkVersion
+       case 17:  // NPFSApp/FileServer/openHandle
+       {
+         int sessionID = in.read_long ();
+         int $result = (int)0;
+         $result = this.openHandle (sessionID);
+         out = $rh.createReply();
+         out.write_long ($result);
+         break;
+       }
+
+       case 18:  // NPFSApp/FileServer/closeSession
+       {
+         int sessionID = in.read_long ();
+         this.closeSession (sessionID);
+         out = $rh.createReply();
+         break;
+       }
+
+       case 19:  // NPFSApp/FileServer/checkVersion
        {
          String filename = in.read_string ();
          int version = in.read_long ();
@@ -174,7 +268,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 13:  // NPFSApp/FileServer/getVersion
+       case 20:  // NPFSApp/FileServer/getVersion
        {
          String filename = in.read_string ();
          int $result = (int)0;
@@ -184,7 +278,7 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 14:  // NPFSApp/FileServer/purgeFile
+       case 21:  // NPFSApp/FileServer/purgeFile
        {
          String filename = in.read_string ();
          this.purgeFile (filename);
@@ -192,20 +286,154 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
          break;
        }
 
-       case 15:  // NPFSApp/FileServer/openSocketFile
+       case 22:  // NPFSApp/FileServer/queryFiles
+       {
+         String filenames[] = NPFSApp.filesHelper.read (in);
+         NPFSApp.fileInfo $result[] = null;
+         $result = this.queryFiles (filenames);
+         out = $rh.createReply();
+         NPFSApp.fileInfosHelper.write (out, $result);
+         break;
+       }
+
+       case 23:  // NPFSApp/FileServer/openSocketFile
+       {
+         String filename = in.read_string ();
+         boolean compressed = in.read_boolean ();
+         int $result = (int)0;
+         $result = this.openSocketFile (filename, compressed);
+         out = $rh.createReply();
+         out.write_long ($result);
+         break;
+       }
+
+       case 24:  // NPFSApp/FileServer/closeSocket
+       {
+         int token = in.read_long ();
+         this.closeSocket (token);
+         out = $rh.createReply();
+         break;
+       }
+
+       case 25:  // NPFSApp/FileServer/openSocketRange
        {
          String filename = in.read_string ();
+         int version = in.read_long ();
+         long start = in.read_longlong ();
+         long end = in.read_longlong ();
+         boolean compressed = in.read_boolean ();
          int $result = (int)0;
-         $result = this.openSocketFile (filename);
+         $result = this.openSocketRange (filename, version, start, end, compressed);
          out = $rh.createReply();
          out.write_long ($result);
          break;
        }
 
-       case 16:  // NPFSApp/FileServer/closeSocket
+       case 26:  // NPFSApp/FileServer/openSocketDelta
        {
-         int port = in.read_long ();
-         this.closeSocket (port);
+         String filename = in.read_string ();
+         int version = in.read_long ();
+         int blockSize = in.read_long ();
+         NPFSApp.blockSum sums[] = NPFSApp.blockSumsHelper.read (in);
+         boolean compressed = in.read_boolean ();
+         int $result = (int)0;
+         $result = this.openSocketDelta (filename, version, blockSize, sums, compressed);
+         out = $rh.createReply();
+         out.write_long ($result);
+         break;
+       }
+
+       case 27:  // NPFSApp/FileServer/getDigest
+       {
+         String filename = in.read_string ();
+         int version = in.read_long ();
+         String $result = null;
+         $result = this.getDigest (filename, version);
+         out = $rh.createReply();
+         out.write_string ($result);
+         break;
+       }
+
+       case 28:  // NPFSApp/FileServer/refreshFile
+       {
+         String filename = in.read_string ();
+         boolean $result = false;
+         $result = this.refreshFile (filename);
+         out = $rh.createReply();
+         out.write_boolean ($result);
+         break;
+       }
+
+       case 29:  // NPFSApp/FileServer/getBlockSums
+       {
+         String filename = in.read_string ();
+         int blockSize = in.read_long ();
+         NPFSApp.blockSum $result[] = null;
+         $result = this.getBlockSums (filename, blockSize);
+         out = $rh.createReply();
+         NPFSApp.blockSumsHelper.write (out, $result);
+         break;
+       }
+
+       case 30:  // NPFSApp/FileServer/openSocketChain
+       {
+         String filename = in.read_string ();
+         int version = in.read_long ();
+         int blockSize = in.read_long ();
+         NPFSApp.chainLink next[] = NPFSApp.serverChainHelper.read (in);
+         NPFSApp.FileListener origin = NPFSApp.FileListenerHelper.read (in);
+         boolean compressed = in.read_boolean ();
+         int $result = (int)0;
+         $result = this.openSocketChain (filename, version, blockSize, next, origin, compressed);
+         out = $rh.createReply();
+         out.write_long ($result);
+         break;
+       }
+
+       case 31:  // NPFSApp/FileServer/getCatalog
+       {
+         NPFSApp.catalogEntry $result[] = null;
+         $result = this.getCatalog ();
+         out = $rh.createReply();
+         NPFSApp.catalogHelper.write (out, $result);
+         break;
+       }
+
+       case 32:  // NPFSApp/FileServer/catalogDelta
+       {
+         String host = in.read_string ();
+         long batch = in.read_longlong ();
+         NPFSApp.catalogEntry delta[] = NPFSApp.catalogHelper.read (in);
+         this.catalogDelta (host, batch, delta);
+         out = $rh.createReply();
+         break;
+       }
+
+       case 33:  // NPFSApp/FileServer/acquireLease
+       {
+         String filename = in.read_string ();
+         NPFSApp.FileListener holder = NPFSApp.FileListenerHelper.read (in);
+         NPFSApp.lease $result = null;
+         $result = this.acquireLease (filename, holder);
+         out = $rh.createReply();
+         NPFSApp.leaseHelper.write (out, $result);
+         break;
+       }
+
+       case 34:  // NPFSApp/FileServer/releaseLease
+       {
+         String filename = in.read_string ();
+         NPFSApp.FileListener holder = NPFSApp.FileListenerHelper.read (in);
+         this.releaseLease (filename, holder);
+         out = $rh.createReply();
+         break;
+       }
+
+       case 35:  // NPFSApp/FileListener/invalidate
+       {
+         String filename = in.read_string ();
+         int version = in.read_long ();
+         this.invalidate (filename, version);
          out = $rh.createReply();
          break;
        }
@@ -219,7 +447,8 @@ public abstract class FileServerPOA extends org.omg.PortableServer.Servant
 
   // Type-specific CORBA::Object operations
   private static String[] __ids = {
-    "IDL:NPFSApp/FileServer:1.0"};
+    "IDL:NPFSApp/FileServer:1.0", 
+    "IDL:NPFSApp/FileListener:1.0"};
 
   public String[] _all_interfaces (org.omg.PortableServer.POA poa, byte[] objectId)
   {
@@ -5,7 +5,7 @@ package NPFSApp;
 * NPFSApp/_FileServerStub.java .
 * Generated by the IDL-to-Java compiler (portable), version "3.2"
 * from npfs.idl
-* Thursday, December 11, 2014 11:04:05 AM EST
+* Sunday, October 18, 2026 6:23:28 AM UTC
 */
 
 public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implements NPFSApp.FileServer
@@ -95,6 +95,114 @@ public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implement
             }
   } // closeFile
 
+  public long openStream (String filename, long start, long end, int sessionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("openStream", true);
+                $out.write_string (filename);
+                $out.write_longlong (start);
+                $out.write_longlong (end);
+                $out.write_long (sessionID);
+                $in = _invoke ($out);
+                long $result = $in.read_longlong ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return openStream (filename, start, end, sessionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // openStream
+
+  public byte[] readChunk (int sessionID, int maxLength)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("readChunk", true);
+                $out.write_long (sessionID);
+                $out.write_long (maxLength);
+                $in = _invoke ($out);
+                byte $result[] = NPFSApp.dataBufferHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return readChunk (sessionID, maxLength        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // readChunk
+
+  public void writeChunk (byte[] data, int sessionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("writeChunk", true);
+                NPFSApp.dataBufferHelper.write ($out, data);
+                $out.write_long (sessionID);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                writeChunk (data, sessionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // writeChunk
+
+  public boolean commit (int sessionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("commit", true);
+                $out.write_long (sessionID);
+                $in = _invoke ($out);
+                boolean $result = $in.read_boolean ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return commit (sessionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // commit
+
+  public boolean reopenFile (String filename, long start, long end, int sessionID, int version)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("reopenFile", true);
+                $out.write_string (filename);
+                $out.write_longlong (start);
+                $out.write_longlong (end);
+                $out.write_long (sessionID);
+                $out.write_long (version);
+                $in = _invoke ($out);
+                boolean $result = $in.read_boolean ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return reopenFile (filename, start, end, sessionID, version        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // reopenFile
+
   public String[] getAllFiles ()
   {
             org.omg.CORBA.portable.InputStream $in = null;
@@ -248,6 +356,45 @@ public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implement
             }
   } // getSessionID
 
+  public int openHandle (int sessionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("openHandle", true);
+                $out.write_long (sessionID);
+                $in = _invoke ($out);
+                int $result = $in.read_long ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return openHandle (sessionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // openHandle
+
+  public void closeSession (int sessionID)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("closeSession", false);
+                $out.write_long (sessionID);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                closeSession (sessionID        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // closeSession
+
   public boolean checkVersion (String filename, int version)
   {
             org.omg.CORBA.portable.InputStream $in = null;
@@ -308,12 +455,33 @@ public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implement
             }
   } // purgeFile
 
-  public int openSocketFile (String filename)
+  public NPFSApp.fileInfo[] queryFiles (String[] filenames)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("queryFiles", true);
+                NPFSApp.filesHelper.write ($out, filenames);
+                $in = _invoke ($out);
+                NPFSApp.fileInfo $result[] = NPFSApp.fileInfosHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return queryFiles (filenames        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // queryFiles
+
+  public int openSocketFile (String filename, boolean compressed)
   {
             org.omg.CORBA.portable.InputStream $in = null;
             try {
                 org.omg.CORBA.portable.OutputStream $out = _request ("openSocketFile", true);
                 $out.write_string (filename);
+                $out.write_boolean (compressed);
                 $in = _invoke ($out);
                 int $result = $in.read_long ();
                 return $result;
@@ -322,18 +490,18 @@ public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implement
                 String _id = $ex.getId ();
                 throw new org.omg.CORBA.MARSHAL (_id);
             } catch (org.omg.CORBA.portable.RemarshalException $rm) {
-                return openSocketFile (filename        );
+                return openSocketFile (filename, compressed        );
             } finally {
                 _releaseReply ($in);
             }
   } // openSocketFile
 
-  public void closeSocket (int port)
+  public void closeSocket (int token)
   {
             org.omg.CORBA.portable.InputStream $in = null;
             try {
                 org.omg.CORBA.portable.OutputStream $out = _request ("closeSocket", false);
-                $out.write_long (port);
+                $out.write_long (token);
                 $in = _invoke ($out);
                 return;
             } catch (org.omg.CORBA.portable.ApplicationException $ex) {
@@ -341,15 +509,252 @@ public class _FileServerStub extends org.omg.CORBA.portable.ObjectImpl implement
                 String _id = $ex.getId ();
                 throw new org.omg.CORBA.MARSHAL (_id);
             } catch (org.omg.CORBA.portable.RemarshalException $rm) {
-                closeSocket (port        );
+                closeSocket (token        );
             } finally {
                 _releaseReply ($in);
             }
   } // closeSocket
 
+  public int openSocketRange (String filename, int version, long start, long end, boolean compressed)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("openSocketRange", true);
+                $out.write_string (filename);
+                $out.write_long (version);
+                $out.write_longlong (start);
+                $out.write_longlong (end);
+                $out.write_boolean (compressed);
+                $in = _invoke ($out);
+                int $result = $in.read_long ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return openSocketRange (filename, version, start, end, compressed        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // openSocketRange
+
+  public int openSocketDelta (String filename, int version, int blockSize, NPFSApp.blockSum[] sums, boolean compressed)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("openSocketDelta", true);
+                $out.write_string (filename);
+                $out.write_long (version);
+                $out.write_long (blockSize);
+                NPFSApp.blockSumsHelper.write ($out, sums);
+                $out.write_boolean (compressed);
+                $in = _invoke ($out);
+                int $result = $in.read_long ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return openSocketDelta (filename, version, blockSize, sums, compressed        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // openSocketDelta
+
+  public String getDigest (String filename, int version)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("getDigest", true);
+                $out.write_string (filename);
+                $out.write_long (version);
+                $in = _invoke ($out);
+                String $result = $in.read_string ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return getDigest (filename, version        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // getDigest
+
+  public boolean refreshFile (String filename)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("refreshFile", true);
+                $out.write_string (filename);
+                $in = _invoke ($out);
+                boolean $result = $in.read_boolean ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return refreshFile (filename        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // refreshFile
+
+  public NPFSApp.blockSum[] getBlockSums (String filename, int blockSize)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("getBlockSums", true);
+                $out.write_string (filename);
+                $out.write_long (blockSize);
+                $in = _invoke ($out);
+                NPFSApp.blockSum $result[] = NPFSApp.blockSumsHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return getBlockSums (filename, blockSize        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // getBlockSums
+
+  public int openSocketChain (String filename, int version, int blockSize, NPFSApp.chainLink[] next, NPFSApp.FileListener origin, boolean compressed)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("openSocketChain", true);
+                $out.write_string (filename);
+                $out.write_long (version);
+                $out.write_long (blockSize);
+                NPFSApp.serverChainHelper.write ($out, next);
+                NPFSApp.FileListenerHelper.write ($out, origin);
+                $out.write_boolean (compressed);
+                $in = _invoke ($out);
+                int $result = $in.read_long ();
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return openSocketChain (filename, version, blockSize, next, origin, compressed        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // openSocketChain
+
+  public NPFSApp.catalogEntry[] getCatalog ()
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("getCatalog", true);
+                $in = _invoke ($out);
+                NPFSApp.catalogEntry $result[] = NPFSApp.catalogHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return getCatalog (        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // getCatalog
+
+  public void catalogDelta (String host, long batch, NPFSApp.catalogEntry[] delta)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("catalogDelta", false);
+                $out.write_string (host);
+                $out.write_longlong (batch);
+                NPFSApp.catalogHelper.write ($out, delta);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                catalogDelta (host, batch, delta        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // catalogDelta
+
+  public NPFSApp.lease acquireLease (String filename, NPFSApp.FileListener holder)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("acquireLease", true);
+                $out.write_string (filename);
+                NPFSApp.FileListenerHelper.write ($out, holder);
+                $in = _invoke ($out);
+                NPFSApp.lease $result = NPFSApp.leaseHelper.read ($in);
+                return $result;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                return acquireLease (filename, holder        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // acquireLease
+
+  public void releaseLease (String filename, NPFSApp.FileListener holder)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("releaseLease", false);
+                $out.write_string (filename);
+                NPFSApp.FileListenerHelper.write ($out, holder);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                releaseLease (filename, holder        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // releaseLease
+
+  public void invalidate (String filename, int version)
+  {
+            org.omg.CORBA.portable.InputStream $in = null;
+            try {
+                org.omg.CORBA.portable.OutputStream $out = _request ("invalidate", false);
+                $out.write_string (filename);
+                $out.write_long (version);
+                $in = _invoke ($out);
+                return;
+            } catch (org.omg.CORBA.portable.ApplicationException $ex) {
+                $in = $ex.getInputStream ();
+                String _id = $ex.getId ();
+                throw new org.omg.CORBA.MARSHAL (_id);
+            } catch (org.omg.CORBA.portable.RemarshalException $rm) {
+                invalidate (filename, version        );
+            } finally {
+                _releaseReply ($in);
+            }
+  } // invalidate
+
   // Type-specific CORBA::Object operations
   private static String[] __ids = {
-    "IDL:NPFSApp/FileServer:1.0"};
+    "IDL:NPFSApp/FileServer:1.0", 
+    "IDL:NPFSApp/FileListener:1.0"};
 
   public String[] _ids ()
   {
@@ -0,0 +1,26 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/blockSum.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:57:08 AM UTC
+*/
+
+public final class blockSum implements org.omg.CORBA.portable.IDLEntity
+{
+  public int weak = (int)0;
+  public byte strong[] = null;
+
+  public blockSum ()
+  {
+  } // ctor
+
+  public blockSum (int _weak, byte[] _strong)
+  {
+    weak = _weak;
+    strong = _strong;
+  } // ctor
+
+} // class blockSum
@@ -0,0 +1,84 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/blockSumHelper.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:57:08 AM UTC
+*/
+
+abstract public class blockSumHelper
+{
+  private static String  _id = "IDL:NPFSApp/blockSum:1.0";
+
+  public static void insert (org.omg.CORBA.Any a, NPFSApp.blockSum that)
+  {
+    org.omg.CORBA.portable.OutputStream out = a.create_output_stream ();
+    a.type (type ());
+    write (out, that);
+    a.read_value (out.create_input_stream (), type ());
+  }
+
+  public static NPFSApp.blockSum extract (org.omg.CORBA.Any a)
+  {
+    return read (a.create_input_stream ());
+  }
+
+  private static org.omg.CORBA.TypeCode __typeCode = null;
+  private static boolean __active = false;
+  synchronized public static org.omg.CORBA.TypeCode type ()
+  {
+    if (__typeCode == null)
+    {
+      synchronized (org.omg.CORBA.TypeCode.class)
+      {
+        if (__typeCode == null)
+        {
+          if (__active)
+          {
+            return org.omg.CORBA.ORB.init().create_recursive_tc ( _id );
+          }
+          __active = true;
+          org.omg.CORBA.StructMember[] _members0 = new org.omg.CORBA.StructMember [2];
+          org.omg.CORBA.TypeCode _tcOf_members0 = null;
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().get_primitive_tc (org.omg.CORBA.TCKind.tk_long);
+          _members0[0] = new org.omg.CORBA.StructMember (
+            "weak",
+            _tcOf_members0,
+            null);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().get_primitive_tc (org.omg.CORBA.TCKind.tk_octet);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().create_sequence_tc (0, _tcOf_members0);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().create_alias_tc (NPFSApp.dataBufferHelper.id (), "dataBuffer", _tcOf_members0);
+          _members0[1] = new org.omg.CORBA.StructMember (
+            "strong",
+            _tcOf_members0,
+            null);
+          __typeCode = org.omg.CORBA.ORB.init ().create_struct_tc (NPFSApp.blockSumHelper.id (), "blockSum", _members0);
+          __active = false;
+        }
+      }
+    }
+    return __typeCode;
+  }
+
+  public static String id ()
+  {
+    return _id;
+  }
+
+  public static NPFSApp.blockSum read (org.omg.CORBA.portable.InputStream istream)
+  {
+    NPFSApp.blockSum value = new NPFSApp.blockSum ();
+    value.weak = istream.read_long ();
+    value.strong = NPFSApp.dataBufferHelper.read (istream);
+    return value;
+  }
+
+  public static void write (org.omg.CORBA.portable.OutputStream ostream, NPFSApp.blockSum value)
+  {
+    ostream.write_long (value.weak);
+    NPFSApp.dataBufferHelper.write (ostream, value.strong);
+  }
+
+}
@@ -0,0 +1,38 @@
+package NPFSApp;
+
+/**
+* NPFSApp/blockSumHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:57:08 AM UTC
+*/
+
+public final class blockSumHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.blockSum value = null;
+
+  public blockSumHolder ()
+  {
+  }
+
+  public blockSumHolder (NPFSApp.blockSum initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.blockSumHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.blockSumHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.blockSumHelper.type ();
+  }
+
+}
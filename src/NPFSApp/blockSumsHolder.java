@@ -0,0 +1,39 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/blockSumsHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:57:08 AM UTC
+*/
+
+public final class blockSumsHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.blockSum value[] = null;
+
+  public blockSumsHolder ()
+  {
+  }
+
+  public blockSumsHolder (NPFSApp.blockSum[] initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.blockSumsHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.blockSumsHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.blockSumsHelper.type ();
+  }
+
+}
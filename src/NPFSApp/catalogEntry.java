@@ -0,0 +1,28 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/catalogEntry.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:51:51 AM UTC
+*/
+
+public final class catalogEntry implements org.omg.CORBA.portable.IDLEntity
+{
+  public String filename = null;
+  public String host = null;
+  public int version = (int)0;
+
+  public catalogEntry ()
+  {
+  } // ctor
+
+  public catalogEntry (String _filename, String _host, int _version)
+  {
+    filename = _filename;
+    host = _host;
+    version = _version;
+  } // ctor
+
+} // class catalogEntry
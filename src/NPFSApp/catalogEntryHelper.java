@@ -0,0 +1,89 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/catalogEntryHelper.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:51:51 AM UTC
+*/
+
+abstract public class catalogEntryHelper
+{
+  private static String  _id = "IDL:NPFSApp/catalogEntry:1.0";
+
+  public static void insert (org.omg.CORBA.Any a, NPFSApp.catalogEntry that)
+  {
+    org.omg.CORBA.portable.OutputStream out = a.create_output_stream ();
+    a.type (type ());
+    write (out, that);
+    a.read_value (out.create_input_stream (), type ());
+  }
+
+  public static NPFSApp.catalogEntry extract (org.omg.CORBA.Any a)
+  {
+    return read (a.create_input_stream ());
+  }
+
+  private static org.omg.CORBA.TypeCode __typeCode = null;
+  private static boolean __active = false;
+  synchronized public static org.omg.CORBA.TypeCode type ()
+  {
+    if (__typeCode == null)
+    {
+      synchronized (org.omg.CORBA.TypeCode.class)
+      {
+        if (__typeCode == null)
+        {
+          if (__active)
+          {
+            return org.omg.CORBA.ORB.init().create_recursive_tc ( _id );
+          }
+          __active = true;
+          org.omg.CORBA.StructMember[] _members0 = new org.omg.CORBA.StructMember [3];
+          org.omg.CORBA.TypeCode _tcOf_members0 = null;
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().create_string_tc (0);
+          _members0[0] = new org.omg.CORBA.StructMember (
+            "filename",
+            _tcOf_members0,
+            null);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().create_string_tc (0);
+          _members0[1] = new org.omg.CORBA.StructMember (
+            "host",
+            _tcOf_members0,
+            null);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().get_primitive_tc (org.omg.CORBA.TCKind.tk_long);
+          _members0[2] = new org.omg.CORBA.StructMember (
+            "version",
+            _tcOf_members0,
+            null);
+          __typeCode = org.omg.CORBA.ORB.init ().create_struct_tc (NPFSApp.catalogEntryHelper.id (), "catalogEntry", _members0);
+          __active = false;
+        }
+      }
+    }
+    return __typeCode;
+  }
+
+  public static String id ()
+  {
+    return _id;
+  }
+
+  public static NPFSApp.catalogEntry read (org.omg.CORBA.portable.InputStream istream)
+  {
+    NPFSApp.catalogEntry value = new NPFSApp.catalogEntry ();
+    value.filename = istream.read_string ();
+    value.host = istream.read_string ();
+    value.version = istream.read_long ();
+    return value;
+  }
+
+  public static void write (org.omg.CORBA.portable.OutputStream ostream, NPFSApp.catalogEntry value)
+  {
+    ostream.write_string (value.filename);
+    ostream.write_string (value.host);
+    ostream.write_long (value.version);
+  }
+
+}
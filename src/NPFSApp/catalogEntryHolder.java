@@ -0,0 +1,38 @@
+package NPFSApp;
+
+/**
+* NPFSApp/catalogEntryHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:51:51 AM UTC
+*/
+
+public final class catalogEntryHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.catalogEntry value = null;
+
+  public catalogEntryHolder ()
+  {
+  }
+
+  public catalogEntryHolder (NPFSApp.catalogEntry initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.catalogEntryHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.catalogEntryHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.catalogEntryHelper.type ();
+  }
+
+}
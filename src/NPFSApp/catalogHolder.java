@@ -0,0 +1,39 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/catalogHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:51:51 AM UTC
+*/
+
+public final class catalogHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.catalogEntry value[] = null;
+
+  public catalogHolder ()
+  {
+  }
+
+  public catalogHolder (NPFSApp.catalogEntry[] initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.catalogHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.catalogHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.catalogHelper.type ();
+  }
+
+}
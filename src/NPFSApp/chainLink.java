@@ -0,0 +1,26 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/chainLink.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:01:02 AM UTC
+*/
+
+public final class chainLink implements org.omg.CORBA.portable.IDLEntity
+{
+  public NPFSApp.FileServer server = null;
+  public String dataEndpoint = null;
+
+  public chainLink ()
+  {
+  } // ctor
+
+  public chainLink (NPFSApp.FileServer _server, String _dataEndpoint)
+  {
+    server = _server;
+    dataEndpoint = _dataEndpoint;
+  } // ctor
+
+} // class chainLink
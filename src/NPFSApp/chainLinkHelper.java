@@ -0,0 +1,82 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/chainLinkHelper.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:01:02 AM UTC
+*/
+
+abstract public class chainLinkHelper
+{
+  private static String  _id = "IDL:NPFSApp/chainLink:1.0";
+
+  public static void insert (org.omg.CORBA.Any a, NPFSApp.chainLink that)
+  {
+    org.omg.CORBA.portable.OutputStream out = a.create_output_stream ();
+    a.type (type ());
+    write (out, that);
+    a.read_value (out.create_input_stream (), type ());
+  }
+
+  public static NPFSApp.chainLink extract (org.omg.CORBA.Any a)
+  {
+    return read (a.create_input_stream ());
+  }
+
+  private static org.omg.CORBA.TypeCode __typeCode = null;
+  private static boolean __active = false;
+  synchronized public static org.omg.CORBA.TypeCode type ()
+  {
+    if (__typeCode == null)
+    {
+      synchronized (org.omg.CORBA.TypeCode.class)
+      {
+        if (__typeCode == null)
+        {
+          if (__active)
+          {
+            return org.omg.CORBA.ORB.init().create_recursive_tc ( _id );
+          }
+          __active = true;
+          org.omg.CORBA.StructMember[] _members0 = new org.omg.CORBA.StructMember [2];
+          org.omg.CORBA.TypeCode _tcOf_members0 = null;
+          _tcOf_members0 = NPFSApp.FileServerHelper.type ();
+          _members0[0] = new org.omg.CORBA.StructMember (
+            "server",
+            _tcOf_members0,
+            null);
+          _tcOf_members0 = org.omg.CORBA.ORB.init ().create_string_tc (0);
+          _members0[1] = new org.omg.CORBA.StructMember (
+            "dataEndpoint",
+            _tcOf_members0,
+            null);
+          __typeCode = org.omg.CORBA.ORB.init ().create_struct_tc (NPFSApp.chainLinkHelper.id (), "chainLink", _members0);
+          __active = false;
+        }
+      }
+    }
+    return __typeCode;
+  }
+
+  public static String id ()
+  {
+    return _id;
+  }
+
+  public static NPFSApp.chainLink read (org.omg.CORBA.portable.InputStream istream)
+  {
+    NPFSApp.chainLink value = new NPFSApp.chainLink ();
+    value.server = NPFSApp.FileServerHelper.read (istream);
+    value.dataEndpoint = istream.read_string ();
+    return value;
+  }
+
+  public static void write (org.omg.CORBA.portable.OutputStream ostream, NPFSApp.chainLink value)
+  {
+    NPFSApp.FileServerHelper.write (ostream, value.server);
+    ostream.write_string (value.dataEndpoint);
+  }
+
+}
@@ -0,0 +1,38 @@
+package NPFSApp;
+
+/**
+* NPFSApp/chainLinkHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:01:02 AM UTC
+*/
+
+public final class chainLinkHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.chainLink value = null;
+
+  public chainLinkHolder ()
+  {
+  }
+
+  public chainLinkHolder (NPFSApp.chainLink initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.chainLinkHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.chainLinkHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.chainLinkHelper.type ();
+  }
+
+}
@@ -0,0 +1,32 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/fileInfo.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:55:04 AM UTC
+*/
+
+public final class fileInfo implements org.omg.CORBA.portable.IDLEntity
+{
+  public String filename = null;
+  public boolean present = false;
+  public int version = (int)0;
+  public long size = (long)0;
+  public String dataEndpoint = null;
+
+  public fileInfo ()
+  {
+  } // ctor
+
+  public fileInfo (String _filename, boolean _present, int _version, long _size, String _dataEndpoint)
+  {
+    filename = _filename;
+    present = _present;
+    version = _version;
+    size = _size;
+    dataEndpoint = _dataEndpoint;
+  } // ctor
+
+} // class fileInfo
@@ -0,0 +1,38 @@
+package NPFSApp;
+
+/**
+* NPFSApp/fileInfoHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:55:04 AM UTC
+*/
+
+public final class fileInfoHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.fileInfo value = null;
+
+  public fileInfoHolder ()
+  {
+  }
+
+  public fileInfoHolder (NPFSApp.fileInfo initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.fileInfoHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.fileInfoHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.fileInfoHelper.type ();
+  }
+
+}
@@ -0,0 +1,39 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/fileInfosHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 4:55:04 AM UTC
+*/
+
+public final class fileInfosHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.fileInfo value[] = null;
+
+  public fileInfosHolder ()
+  {
+  }
+
+  public fileInfosHolder (NPFSApp.fileInfo[] initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.fileInfosHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.fileInfosHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.fileInfosHelper.type ();
+  }
+
+}
@@ -0,0 +1,26 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/lease.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:22:37 AM UTC
+*/
+
+public final class lease implements org.omg.CORBA.portable.IDLEntity
+{
+  public NPFSApp.fileInfo file = null;
+  public long duration = (long)0;
+
+  public lease ()
+  {
+  } // ctor
+
+  public lease (NPFSApp.fileInfo _file, long _duration)
+  {
+    file = _file;
+    duration = _duration;
+  } // ctor
+
+} // class lease
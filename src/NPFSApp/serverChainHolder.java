@@ -0,0 +1,39 @@
+package NPFSApp;
+
+
+/**
+* NPFSApp/serverChainHolder.java .
+* Generated by the IDL-to-Java compiler (portable), version "3.2"
+* from npfs.idl
+* Sunday, October 18, 2026 5:01:02 AM UTC
+*/
+
+public final class serverChainHolder implements org.omg.CORBA.portable.Streamable
+{
+  public NPFSApp.chainLink value[] = null;
+
+  public serverChainHolder ()
+  {
+  }
+
+  public serverChainHolder (NPFSApp.chainLink[] initialValue)
+  {
+    value = initialValue;
+  }
+
+  public void _read (org.omg.CORBA.portable.InputStream i)
+  {
+    value = NPFSApp.serverChainHelper.read (i);
+  }
+
+  public void _write (org.omg.CORBA.portable.OutputStream o)
+  {
+    NPFSApp.serverChainHelper.write (o, value);
+  }
+
+  public org.omg.CORBA.TypeCode _type ()
+  {
+    return NPFSApp.serverChainHelper.type ();
+  }
+
+}
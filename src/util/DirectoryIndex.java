@@ -0,0 +1,221 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory index of the names of the files being served out of a directory.
+ * A WatchService keeps it current when files are added or removed by
+ * something other than the server. Like {@link HideHidden}, hidden files are
+ * left out, as are ~ prefixed temp files.
+ * 
+ * @author nhydock
+ *
+ */
+public class DirectoryIndex {
+
+    /**
+     * Notified when a file shows up in or disappears from the directory
+     * 
+     * @author nhydock
+     *
+     */
+    public interface Listener {
+        /**
+         * Called when a file is added to the index
+         * 
+         * @param filename
+         */
+        void fileAdded(String filename);
+
+        /**
+         * Called when a file is removed from the index
+         * 
+         * @param filename
+         */
+        void fileRemoved(String filename);
+    }
+
+    /**
+     * The directory being indexed
+     */
+    final File directory;
+
+    /**
+     * Names of the served files
+     */
+    final Set<String> names;
+
+    /**
+     * Everything listening for changes
+     */
+    final CopyOnWriteArrayList<Listener> listeners;
+
+    /**
+     * Watches the directory for changes made outside the server
+     */
+    WatchService watcher;
+
+    /**
+     * Indexes a directory and starts watching it
+     * 
+     * @param directory
+     */
+    public DirectoryIndex(File directory) {
+        this.directory = directory;
+        this.names = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        this.listeners = new CopyOnWriteArrayList<Listener>();
+
+        try {
+            watcher = directory.toPath().getFileSystem().newWatchService();
+            directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            watcher = null;
+        }
+
+        rescan();
+
+        if (watcher != null) {
+            Thread thread = new Thread("directory-watcher") {
+                public void run() {
+                    watch();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Checks if a file is being served
+     * 
+     * @param filename
+     * @return true if the file is in the directory
+     */
+    public boolean contains(String filename) {
+        return names.contains(filename);
+    }
+
+    /**
+     * Gets the names of all the files being served
+     * 
+     * @return array of file names
+     */
+    public String[] names() {
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Registers something to be told about files coming and going
+     * 
+     * @param listener
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records a file the server just created, without waiting for the watcher
+     * to notice it
+     * 
+     * @param filename
+     */
+    public void add(String filename) {
+        if (accept(filename) && names.add(filename)) {
+            for (Listener listener : listeners) {
+                listener.fileAdded(filename);
+            }
+        }
+    }
+
+    /**
+     * Records a file the server just deleted, without waiting for the watcher
+     * to notice it
+     * 
+     * @param filename
+     */
+    public void remove(String filename) {
+        if (names.remove(filename)) {
+            for (Listener listener : listeners) {
+                listener.fileRemoved(filename);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from a full listing of the directory
+     */
+    public void rescan() {
+        Set<String> present = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        File[] files = directory.listFiles(HideHidden.instance);
+        if (files != null) {
+            for (File f : files) {
+                if (accept(f.getName())) {
+                    present.add(f.getName());
+                    add(f.getName());
+                }
+            }
+        }
+        for (String filename : names) {
+            if (!present.contains(filename)) {
+                remove(filename);
+            }
+        }
+    }
+
+    /**
+     * Checks if a file name should be served
+     * 
+     * @param filename
+     * @return false for hidden and temp files
+     */
+    boolean accept(String filename) {
+        return !filename.startsWith("~") && !new File(directory, filename).isHidden();
+    }
+
+    /**
+     * Applies directory change events to the index until the watcher is
+     * closed. Events can arrive after the server has already changed the
+     * file again, so each one is checked against the file system.
+     */
+    void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                    rescan();
+                    continue;
+                }
+                String filename = ((Path) event.context()).getFileName().toString();
+                boolean exists = new File(directory, filename).exists();
+                if (exists) {
+                    add(filename);
+                } else {
+                    remove(filename);
+                }
+            }
+
+            if (!key.reset()) {
+                return;
+            }
+        }
+    }
+}
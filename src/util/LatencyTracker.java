@@ -0,0 +1,304 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import NPFSApp.FileServer;
+
+/**
+ * Keeps a running estimate of how long each file server takes to answer.
+ * Servers are pinged in the background and each round trip is folded into an
+ * exponentially weighted moving average, so picking or sorting servers by
+ * distance never has to make a remote call. Each round pings the servers all
+ * at once, so one that doesn't answer only holds up its own ping, and servers
+ * that stop answering for long enough are dropped until they're tracked again.
+ * 
+ * @author nhydock
+ *
+ */
+public class LatencyTracker {
+
+    /**
+     * Milliseconds between rounds of pings
+     */
+    private static final long PROBE_INTERVAL = 2000;
+
+    /**
+     * Milliseconds a round waits for answers before counting the servers
+     * that haven't answered as unreachable
+     */
+    private static final long PING_TIMEOUT = PROBE_INTERVAL;
+
+    /**
+     * Rounds in a row a server can go without answering before it stops
+     * being pinged
+     */
+    private static final int MAX_MISSED = 30;
+
+    /**
+     * Weight given to the newest round trip
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * Latency of servers that haven't answered yet or stopped answering
+     */
+    public static final double UNREACHABLE = Double.POSITIVE_INFINITY;
+
+    /**
+     * Servers being pinged
+     */
+    final CopyOnWriteArrayList<FileServer> servers;
+
+    /**
+     * Average round trip of each server in nanoseconds
+     */
+    final ConcurrentHashMap<FileServer, Double> latencies;
+
+    /**
+     * Rounds in a row each server hasn't answered in
+     */
+    private final ConcurrentHashMap<FileServer, Integer> missed;
+
+    /**
+     * Servers ordered from closest to furthest as of the last round of pings.
+     * Replaced as a whole, never modified.
+     */
+    private volatile List<FileServer> ranked;
+
+    /**
+     * Servers with a ping still waiting on an answer, which are skipped
+     * until it comes back
+     */
+    private final Set<FileServer> pinging;
+
+    /**
+     * Runs the rounds of pings
+     */
+    private final ScheduledExecutorService prober;
+
+    /**
+     * Makes the pings of a round
+     */
+    private final ExecutorService pingers;
+
+    /**
+     * Creates a tracker and starts pinging in the background
+     */
+    public LatencyTracker() {
+        this.servers = new CopyOnWriteArrayList<FileServer>();
+        this.latencies = new ConcurrentHashMap<FileServer, Double>();
+        this.missed = new ConcurrentHashMap<FileServer, Integer>();
+        this.ranked = Collections.emptyList();
+        this.pinging = Collections.newSetFromMap(new ConcurrentHashMap<FileServer, Boolean>());
+        this.pingers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "latency-ping");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "latency-prober");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe();
+            }
+        }, 0, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts keeping track of a server. Does nothing if it's already tracked.
+     * 
+     * @param server
+     */
+    public void track(FileServer server) {
+        if (servers.addIfAbsent(server)) {
+            rank();
+        }
+    }
+
+    /**
+     * Stops pinging a server and forgets how far away it is
+     * 
+     * @param server
+     */
+    public void untrack(FileServer server) {
+        if (servers.remove(server)) {
+            latencies.remove(server);
+            missed.remove(server);
+            rank();
+        }
+    }
+
+    /**
+     * Gets the average round trip to a server
+     * 
+     * @param server
+     * @return nanoseconds, or {@link #UNREACHABLE} if the server hasn't
+     *         answered
+     */
+    public double latency(FileServer server) {
+        Double latency = latencies.get(server);
+        return (latency == null) ? UNREACHABLE : latency;
+    }
+
+    /**
+     * Gets the tracked servers from closest to furthest
+     * 
+     * @return an unmodifiable list
+     */
+    public List<FileServer> ranked() {
+        return ranked;
+    }
+
+    /**
+     * Orders a group of servers from closest to furthest. Servers that
+     * aren't tracked go last.
+     * 
+     * @param group
+     * @return a new list
+     */
+    public List<FileServer> sort(Collection<FileServer> group) {
+        List<FileServer> sorted = new ArrayList<FileServer>(group);
+        Collections.sort(sorted, new PingComparator(new HashMap<FileServer, Double>(latencies)));
+        return sorted;
+    }
+
+    /**
+     * Times a single call to a server
+     * 
+     * @param server
+     * @return round trip in nanoseconds, or {@link #UNREACHABLE} if the call
+     *         failed
+     */
+    public static double ping(FileServer server) {
+        long start = System.nanoTime();
+        try {
+            server.testResponse();
+        } catch (org.omg.CORBA.SystemException e) {
+            return UNREACHABLE;
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Pings every server once and reranks them, dropping servers that haven't
+     * answered in {@link #MAX_MISSED} rounds
+     */
+    void probe() {
+        ArrayList<FileServer> round = new ArrayList<FileServer>();
+        ArrayList<Callable<Double>> pings = new ArrayList<Callable<Double>>();
+        ArrayList<FileServer> dropped = new ArrayList<FileServer>();
+        for (final FileServer server : servers) {
+            // a ping that still hasn't come back misses this round as well
+            if (pinging.contains(server)) {
+                if (miss(server)) {
+                    dropped.add(server);
+                }
+                continue;
+            }
+            round.add(server);
+            pings.add(new Callable<Double>() {
+                @Override
+                public Double call() {
+                    pinging.add(server);
+                    try {
+                        return ping(server);
+                    } finally {
+                        pinging.remove(server);
+                    }
+                }
+            });
+        }
+
+        List<Future<Double>> answers;
+        try {
+            answers = pingers.invokeAll(pings, PING_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (int i = 0; i < round.size(); i++) {
+            FileServer server = round.get(i);
+            double sample;
+            try {
+                sample = answers.get(i).get();
+            } catch (CancellationException | ExecutionException e) {
+                sample = UNREACHABLE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            // untracked while its ping was out
+            if (!servers.contains(server)) {
+                continue;
+            }
+            Double previous = latencies.get(server);
+            double latency;
+            if (previous == null || previous == UNREACHABLE || sample == UNREACHABLE) {
+                latency = sample;
+            } else {
+                latency = ALPHA * sample + (1 - ALPHA) * previous;
+            }
+            latencies.put(server, latency);
+            if (sample != UNREACHABLE) {
+                missed.remove(server);
+            } else if (miss(server)) {
+                dropped.add(server);
+            }
+        }
+        for (FileServer server : dropped) {
+            untrack(server);
+        }
+        rank();
+    }
+
+    /**
+     * Counts a round a server didn't answer in
+     * 
+     * @param server
+     * @return true if the server has gone too many rounds without answering
+     */
+    private boolean miss(FileServer server) {
+        Integer count = missed.get(server);
+        count = (count == null) ? 1 : count + 1;
+        missed.put(server, count);
+        return count >= MAX_MISSED;
+    }
+
+    /**
+     * Rebuilds the ranked view from the current averages. Runs one at a time,
+     * so the view published last is built from the newest list of servers.
+     */
+    private synchronized void rank() {
+        List<FileServer> sorted = new ArrayList<FileServer>(servers);
+        // pings keep landing while sorting, so sort a copy of the averages
+        HashMap<FileServer, Double> snapshot = new HashMap<FileServer, Double>(latencies);
+        Collections.sort(sorted, new PingComparator(snapshot));
+        ranked = Collections.unmodifiableList(sorted);
+    }
+}
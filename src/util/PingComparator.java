@@ -1,6 +1,7 @@
 package util;
 
 import java.util.Comparator;
+import java.util.Map;
 
 import NPFSApp.FileServer;
 
@@ -12,26 +13,28 @@ import NPFSApp.FileServer;
  */
 public class PingComparator implements Comparator<FileServer> {
     /**
-     * Pings this file server instance from the current host
+     * Ping times to sort by, which mustn't change while sorting
+     */
+    final Map<FileServer, Double> latencies;
+
+    /**
+     * Creates a comparator over a fixed set of ping times
      * 
-     * @param server
-     *            - file server to compare against
-     * @return time it took to call the server
+     * @param latencies
+     *            - ping time of each server, servers missing from it count as
+     *            unreachable
      */
-    public long ping(FileServer server) {
-        long elapsed;
-        long start = System.currentTimeMillis();
-        server.testResponse();
-        long end = System.currentTimeMillis();
-        elapsed = end - start;
-        return elapsed;
+    public PingComparator(Map<FileServer, Double> latencies) {
+        this.latencies = latencies;
     }
 
     @Override
     public int compare(FileServer o1, FileServer o2) {
-        Long time1 = new Long(ping(o1));
-        Long time2 = new Long(ping(o2));
+        return Double.compare(latency(o1), latency(o2));
+    }
 
-        return time1.compareTo(time2);
+    private double latency(FileServer server) {
+        Double latency = latencies.get(server);
+        return (latency == null) ? LatencyTracker.UNREACHABLE : latency;
     }
-}
\ No newline at end of file
+}
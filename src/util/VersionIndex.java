@@ -0,0 +1,409 @@
+package util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Open addressing hash table of file names to version numbers, kept in a
+ * memory mapped file. Lookups and updates happen directly against the
+ * mapping, so nothing but the page cache has to hold the table.
+ * 
+ * Layout: a header, then a power of two number of 16 byte slots holding a
+ * name's hash, its version and the offset of the name, then a heap of
+ * length-prefixed UTF-8 names. The whole file sits in a single mapping, which
+ * limits it to 2 GB. Lookups share a read lock, so they only wait on
+ * updates. Names of removed files stay in the heap until the table is
+ * rebuilt, which happens before they'd make the file grow.
+ * 
+ * @author nhydock
+ *
+ */
+public class VersionIndex implements Closeable {
+
+    /**
+     * Marks the start of an index file
+     */
+    private static final long MAGIC = 0x4e50465356455253L;
+    /**
+     * Header layout, the magic number is at 0
+     */
+    private static final int CAPACITY = 8, COUNT = 12, USED = 16, DEAD = 20, HEAP_END = 24, HEADER_SIZE = 32;
+    /**
+     * Slot layout
+     */
+    private static final int SLOT_HASH = 0, SLOT_VERSION = 4, SLOT_KEY = 8, SLOT_SIZE = 16;
+    /**
+     * Key offsets marking slots that were never used or were removed
+     */
+    private static final long EMPTY = 0, DELETED = -1;
+    /**
+     * Share of slots that may be used, removed ones included, before the
+     * table is rebuilt
+     */
+    private static final float LOAD_FACTOR = 0.7f;
+    /**
+     * Number of slots in a new index
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * Encoding of names in the key heap
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * File holding the index
+     */
+    private final File file;
+    /**
+     * Mapping of the whole file
+     */
+    private MappedByteBuffer map;
+    /**
+     * Number of slots in the table
+     */
+    private int capacity;
+    /**
+     * Held shared by lookups and exclusively by anything that changes the
+     * table
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Opens an index file, creating an empty one if it doesn't exist
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public VersionIndex(File file) throws IOException {
+        this.file = file;
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            create(file, INITIAL_CAPACITY);
+        }
+        open();
+        if (map.getLong(0) != MAGIC) {
+            throw new IOException(file + " is not a version index");
+        }
+    }
+
+    /**
+     * Gets the version of a file
+     * 
+     * @param filename
+     * @return the version, or -1 if the file isn't in the index
+     */
+    public int get(String filename) {
+        byte[] key = filename.getBytes(UTF8);
+        lock.readLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            return (slot < 0) ? -1 : map.getInt(slotOffset(slot) + SLOT_VERSION);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if a file is in the index
+     * 
+     * @param filename
+     * @return true if the file has a version
+     */
+    public boolean contains(String filename) {
+        byte[] key = filename.getBytes(UTF8);
+        lock.readLock().lock();
+        try {
+            return find(key, hash(key)) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the version of a file, adding it if needed
+     * 
+     * @param filename
+     * @param version
+     * @throws IOException
+     */
+    public void put(String filename, int version) throws IOException {
+        byte[] key = filename.getBytes(UTF8);
+        lock.writeLock().lock();
+        try {
+            insert(key, version);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the version of a file while holding the write lock
+     * 
+     * @param key
+     *            - encoded name
+     * @param version
+     * @throws IOException
+     */
+    private void insert(byte[] key, int version) throws IOException {
+        int hash = hash(key);
+        int slot = find(key, hash);
+        if (slot >= 0) {
+            map.putInt(slotOffset(slot) + SLOT_VERSION, version);
+            return;
+        }
+
+        boolean full = map.getInt(USED) + 1 > capacity * LOAD_FACTOR;
+        // rather than grow the file while most of the heap is names of
+        // removed files, drop them
+        long heapEnd = map.getLong(HEAP_END);
+        long heap = heapEnd - slotOffset(capacity);
+        boolean wasteful = heapEnd + 2 + key.length > map.capacity() && map.getInt(DEAD) > heap / 2;
+        if (full || wasteful) {
+            rebuild();
+            slot = find(key, hash);
+        }
+        slot = -slot - 1;
+        int offset = slotOffset(slot);
+        boolean reused = map.getLong(offset + SLOT_KEY) == DELETED;
+
+        // write the name before the slot points at it
+        long keyOffset = map.getLong(HEAP_END);
+        ensure(keyOffset + 2 + key.length);
+        map.putShort((int) keyOffset, (short) key.length);
+        for (int i = 0; i < key.length; i++) {
+            map.put((int) keyOffset + 2 + i, key[i]);
+        }
+        map.putLong(HEAP_END, keyOffset + 2 + key.length);
+
+        map.putInt(offset + SLOT_HASH, hash);
+        map.putInt(offset + SLOT_VERSION, version);
+        map.putLong(offset + SLOT_KEY, keyOffset);
+        map.putInt(COUNT, map.getInt(COUNT) + 1);
+        if (!reused) {
+            map.putInt(USED, map.getInt(USED) + 1);
+        }
+    }
+
+    /**
+     * Removes a file from the index
+     * 
+     * @param filename
+     */
+    public void remove(String filename) {
+        byte[] key = filename.getBytes(UTF8);
+        lock.writeLock().lock();
+        try {
+            int slot = find(key, hash(key));
+            if (slot >= 0) {
+                map.putInt(DEAD, map.getInt(DEAD) + 2 + key.length);
+                map.putLong(slotOffset(slot) + SLOT_KEY, DELETED);
+                map.putInt(COUNT, map.getInt(COUNT) - 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Number of files in the index
+     * 
+     * @return file count
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return map.getInt(COUNT);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes any changes still in the page cache out to disk
+     */
+    public void force() {
+        lock.readLock().lock();
+        try {
+            map.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            map.force();
+            map = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Looks for a name in the table
+     * 
+     * @param key
+     *            - encoded name
+     * @param hash
+     *            - hash of the name
+     * @return the slot holding the name, or -(slot to insert it at) - 1
+     */
+    private int find(byte[] key, int hash) {
+        int mask = capacity - 1;
+        int insert = -1;
+        for (int i = 0, slot = hash & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+            int offset = slotOffset(slot);
+            long keyOffset = map.getLong(offset + SLOT_KEY);
+            if (keyOffset == EMPTY) {
+                return -((insert < 0) ? slot : insert) - 1;
+            } else if (keyOffset == DELETED) {
+                if (insert < 0) {
+                    insert = slot;
+                }
+            } else if (map.getInt(offset + SLOT_HASH) == hash && keyEquals(keyOffset, key)) {
+                return slot;
+            }
+        }
+        return -insert - 1;
+    }
+
+    /**
+     * Compares a name in the key heap with an encoded name
+     */
+    private boolean keyEquals(long keyOffset, byte[] key) {
+        int at = (int) keyOffset;
+        if (map.getShort(at) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (map.get(at + 2 + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a name out of the key heap
+     */
+    private String key(long keyOffset) {
+        int at = (int) keyOffset;
+        byte[] key = new byte[map.getShort(at)];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = map.get(at + 2 + i);
+        }
+        return new String(key, UTF8);
+    }
+
+    /**
+     * Grows the file if the key heap needs more room
+     * 
+     * @param end
+     *            - offset the heap has to reach
+     * @throws IOException
+     */
+    private void ensure(long end) throws IOException {
+        if (end <= map.capacity()) {
+            return;
+        }
+        if (end > Integer.MAX_VALUE) {
+            throw new IOException(file + " can't grow past 2 GB");
+        }
+        long size = Math.min(Math.max(end, 2L * map.capacity()), Integer.MAX_VALUE);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+        map.force();
+        open();
+    }
+
+    /**
+     * Rewrites the index into a new file, dropping removed entries and their
+     * names, and doubling the number of slots if the table is actually full
+     * 
+     * @throws IOException
+     */
+    private void rebuild() throws IOException {
+        int count = map.getInt(COUNT);
+        int newCapacity = (count + 1 > capacity * LOAD_FACTOR / 2) ? capacity * 2 : capacity;
+        File tmp = new File(file.getPath() + ".tmp");
+        create(tmp, newCapacity);
+
+        VersionIndex rebuilt = new VersionIndex(tmp);
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = slotOffset(slot);
+            long keyOffset = map.getLong(offset + SLOT_KEY);
+            if (keyOffset != EMPTY && keyOffset != DELETED) {
+                rebuilt.put(key(keyOffset), map.getInt(offset + SLOT_VERSION));
+            }
+        }
+        rebuilt.close();
+
+        map.force();
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    /**
+     * Maps the index file
+     * 
+     * @throws IOException
+     */
+    private void open() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+        capacity = map.getInt(CAPACITY);
+    }
+
+    /**
+     * Writes an empty index file
+     * 
+     * @param file
+     * @param capacity
+     *            - number of slots, must be a power of two
+     * @throws IOException
+     */
+    private static void create(File file, int capacity) throws IOException {
+        long heapStart = HEADER_SIZE + (long) capacity * SLOT_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.setLength(heapStart + capacity * 32L);
+            raf.seek(0);
+            raf.writeLong(MAGIC);
+            raf.writeInt(capacity);
+            raf.writeInt(0);
+            raf.writeInt(0);
+            raf.writeInt(0);
+            raf.writeLong(heapStart);
+        }
+    }
+
+    /**
+     * Position of a slot in the file
+     */
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Hash of an encoded name, spread so the low bits used for picking a slot
+     * depend on the whole name
+     */
+    private static int hash(byte[] key) {
+        int h = 1;
+        for (byte b : key) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+}
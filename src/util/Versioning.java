@@ -1,75 +1,128 @@
 package util;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Hashmap file keeping track of version numbers of files on a server
+ * Database keeping track of version numbers of files on a server.
+ * 
+ * Versions live in a memory mapped {@link VersionIndex}, so startup doesn't
+ * parse anything and a version bump is a single write into the mapping. Text
+ * databases written by older servers are imported the first time they're
+ * seen. Files that appear in the directory without a version start at 1.
  * 
  * @author nhydock
  *
  */
 public class Versioning {
     /**
-     * Our version map
+     * Number of updates between syncing the index to disk
+     */
+    private static final int FORCE_INTERVAL = 256;
+
+    /**
+     * Our version index
      */
-    HashMap<String, Integer> versions;
+    VersionIndex versions;
 
     /**
-     * Database file
+     * Text database file used by older servers
      */
     File versionFile;
 
+    /**
+     * Updates made since the index was last synced to disk
+     */
+    final AtomicInteger unsynced = new AtomicInteger();
+
     /**
      * Create a new versioning database instance
      * 
      * @param versionFile
-     *            - name of the file holding our version info
+     *            - name of the file holding our version info, the index is
+     *            kept next to it with a .db extension
      * @param directory
-     *            - directory to keep file versions of
+     *            - index of the directory to keep file versions of
      */
-    public Versioning(File versionFile, File directory) {
+    public Versioning(File versionFile, DirectoryIndex directory) {
         this.versionFile = versionFile;
-        this.versions = new HashMap<String, Integer>();
-        if (!this.versionFile.exists()) {
-            try {
-                this.versionFile.createNewFile();
-            } catch (IOException e) {
-                e.printStackTrace();
+        try {
+            this.versions = new VersionIndex(new File(versionFile.getPath() + ".db"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to open version index", e);
+        }
+
+        // bring over anything an older server left behind
+        File journalFile = new File(versionFile.getPath() + ".journal");
+        if (versionFile.exists()) {
+            read(versionFile);
+        }
+        if (journalFile.exists()) {
+            read(journalFile);
+        }
+
+        for (String filename : directory.names()) {
+            if (!versions.contains(filename)) {
+                put(filename, 1);
             }
-        } else {
-            // read the file
-            try (BufferedReader reader = Files.newBufferedReader(versionFile.toPath(), Charset.defaultCharset())) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    // System.out.println(line);
-                    String[] params = line.split("\\|");
-                    String filename = params[0];
-                    String ver = params[1];
-                    // System.out.println(filename + " " + ver);
-                    int version = Integer.parseInt(ver);
-
-                    versions.put(filename, version);
+        }
+
+        // pick up files dropped into the directory while we're running
+        directory.addListener(new DirectoryIndex.Listener() {
+            @Override
+            public void fileAdded(String filename) {
+                if (!versions.contains(filename)) {
+                    put(filename, 1);
                 }
-            } catch (IOException e1) {
-                // TODO Auto-generated catch block
-                e1.printStackTrace();
             }
-        }
 
-        for (File f : directory.listFiles(HideHidden.instance)) {
-            if (!versions.containsKey(f.getName())) {
-                versions.put(f.getName(), 1);
+            @Override
+            public void fileRemoved(String filename) {
             }
-        }
+        });
 
-        update();
+        versions.force();
+        versionFile.delete();
+        journalFile.delete();
+    }
+
+    /**
+     * Imports entries from a text database into the index. Entries with a
+     * version of -1 remove the file.
+     * 
+     * @param file
+     *            - snapshot or journal to read
+     */
+    private void read(File file) {
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int split = line.lastIndexOf('|');
+                if (split < 0) {
+                    // partially written line at the end of the journal
+                    continue;
+                }
+                String filename = line.substring(0, split);
+                int version;
+                try {
+                    version = Integer.parseInt(line.substring(split + 1));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                if (version == -1) {
+                    versions.remove(filename);
+                } else {
+                    put(filename, version);
+                }
+            }
+        } catch (IOException e1) {
+            e1.printStackTrace();
+        }
     }
 
     /**
@@ -77,7 +130,7 @@ public class Versioning {
      * 
      * @param filename
      *            - file to look for
-     * @return the version number
+     * @return the version number, or -1 if the file isn't tracked
      */
     public int getVersion(String filename) {
         return versions.get(filename);
@@ -94,22 +147,31 @@ public class Versioning {
         if (version == -1) {
             versions.remove(filename);
         } else {
-            versions.put(filename, version);
+            put(filename, version);
+        }
+
+        if (unsynced.incrementAndGet() >= FORCE_INTERVAL) {
+            update();
         }
-        update();
     }
 
     /**
-     * Saves the current state of the version table to the versioning file
+     * Syncs the version index to disk
      */
     public void update() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(versionFile))) {
-            String output = "";
-            for (String key : this.versions.keySet()) {
-                Integer val = this.versions.get(key);
-                output += String.format("%s|%d\n", key, val);
-            }
-            writer.write(output);
+        unsynced.set(0);
+        versions.force();
+    }
+
+    /**
+     * Sets a version in the index
+     * 
+     * @param filename
+     * @param version
+     */
+    private void put(String filename, int version) {
+        try {
+            versions.put(filename, version);
         } catch (IOException e) {
             e.printStackTrace();
         }